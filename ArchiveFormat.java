@@ -0,0 +1,145 @@
+/**
+* --------------------------------------------------------------------
+* The kinds of archive students hand in, told apart by their first bytes
+* (their "magic number") rather than by their name, so a '.zip' that is
+* really a tar.gz (or a '.tgz' that is really a zip) is still opened.
+*
+* Each format knows how to stream itself into a folder. Zip, gzip and
+* tar are built in (a .tar.gz is a gzip with a tar in it). 7z, RAR, bzip2
+* and xz are recognised, but cannot be opened with the JDK alone, so they
+* are saved as they are and reported (see NestedUnzip). Another format can
+* be added with register().
+* --------------------------------------------------------------------
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+public class ArchiveFormat {
+
+	// Bytes read from the start of a file to tell what it is (a tar's magic number is at 257)
+	static final int HEAD_SIZE = 512;
+
+	public static final ArchiveFormat ZIP = new ArchiveFormat("zip", true, 0, 0x50, 0x4b, 0x03, 0x04) {
+		@Override
+		long extract(InputStream in, String name, File destDir, NestedUnzip.Context context) throws IOException
+		{
+			return NestedUnzip.extractZip(in, destDir, context);
+		}
+	};
+
+	// 'ustar' at 257, in both POSIX and GNU tars
+	public static final ArchiveFormat TAR = new ArchiveFormat("tar", true, 257, 'u', 's', 't', 'a', 'r') {
+		@Override
+		long extract(InputStream in, String name, File destDir, NestedUnzip.Context context) throws IOException
+		{
+			return TarReader.extract(in, destDir, context);
+		}
+	};
+
+	// A gzip is one compressed file: a tar (a .tar.gz or .tgz), or anything else, saved without '.gz'
+	public static final ArchiveFormat GZIP = new ArchiveFormat("gzip", true, 0, 0x1f, 0x8b) {
+		@Override
+		long extract(InputStream in, String name, File destDir, NestedUnzip.Context context) throws IOException
+		{
+			try (InputStream gz = new GZIPInputStream(in, context.buffer.length)) {
+				NestedUnzip.Archive inner = NestedUnzip.open(gz);
+				if (inner.format == TAR || inner.format == ZIP) return inner.format.extract(inner.in, name, destDir, context);
+				return NestedUnzip.write(inner.in, new File(destDir, NestedUnzip.baseName(name)), context);
+			}
+		}
+	};
+
+	public static final ArchiveFormat SEVEN_ZIP = new ArchiveFormat("7z", false, 0, '7', 'z', 0xbc, 0xaf, 0x27, 0x1c);
+	public static final ArchiveFormat RAR = new ArchiveFormat("RAR", false, 0, 'R', 'a', 'r', '!', 0x1a, 0x07);
+	public static final ArchiveFormat BZIP2 = new ArchiveFormat("bzip2", false, 0, 'B', 'Z', 'h');
+	public static final ArchiveFormat XZ = new ArchiveFormat("xz", false, 0, 0xfd, '7', 'z', 'X', 'Z', 0x00);
+
+	// Tried in this order. Zip first, as nearly every student archive is one.
+	private static final List<ArchiveFormat> ALL = new CopyOnWriteArrayList<ArchiveFormat>(new ArchiveFormat[] {
+		ZIP, GZIP, TAR, SEVEN_ZIP, RAR, BZIP2, XZ });
+
+	private final String formatName;
+	private final boolean canExtract;
+	private final int magicOffset;
+	private final byte[] magic;
+
+	ArchiveFormat(String formatName, boolean canExtract, int magicOffset, int... magic)
+	{
+		this.formatName = formatName;
+		this.canExtract = canExtract;
+		this.magicOffset = magicOffset;
+		this.magic = new byte[magic.length];
+		for (int i = 0; i < magic.length; i++) this.magic[i] = (byte) magic[i];
+	}
+
+	String formatName()
+	{
+		return formatName;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Whether a file starting with these bytes is in this format.
+	* --------------------------------------------------------------------
+	*/
+	boolean matches(byte[] head, int length)
+	{
+		if (length < magicOffset + magic.length) return false;
+		for (int i = 0; i < magic.length; i++) {
+			if (head[magicOffset + i] != magic[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Whether the script can open this format. Formats it only recognises
+	* are saved as they are.
+	* --------------------------------------------------------------------
+	*/
+	boolean canExtract()
+	{
+		return canExtract;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Streams the archive read from 'in' into destDir and returns the number
+	* of bytes written. name is the archive's own name (eg, 'report.pdf.gz').
+	* 'in' must not be closed.
+	* --------------------------------------------------------------------
+	*/
+	long extract(InputStream in, String name, File destDir, NestedUnzip.Context context) throws IOException
+	{
+		throw new IOException(formatName + " archives cannot be opened by the script");
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Adds a format, tried after the ones already known.
+	* --------------------------------------------------------------------
+	*/
+	static void register(ArchiveFormat format)
+	{
+		ALL.add(format);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Works out the format from a file's first bytes. Returns null if it
+	* is not an archive at all.
+	* --------------------------------------------------------------------
+	*/
+	static ArchiveFormat detect(byte[] head, int length)
+	{
+		for (ArchiveFormat format : ALL) {
+			if (format.matches(head, length)) return format;
+		}
+		return null;
+	}
+}
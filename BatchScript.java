@@ -0,0 +1,246 @@
+/**
+* --------------------------------------------------------------------
+* Runs the script without any dialogs, for many gradebooks at once.
+* The gradebooks and feedback sheet are given on the command line (or in
+* a manifest file) and every gradebook is unzipped, sorted and given its
+* feedback sheets in the one JVM, several gradebooks at a time.
+*
+* This class must never touch AWT or Swing, so it works on a headless box.
+* --------------------------------------------------------------------
+*/
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class BatchScript {
+
+	private final Options options;
+
+	public BatchScript(Options options)
+	{
+		this.options = options;
+	}
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		Options options = Options.parse(args);
+		Metrics.verbosity = options.verbosity;
+		if (options.browse) {
+			// The server's threads keep the JVM running
+			if (!new GradebookBrowser(options).start()) System.exit(1);
+			return;
+		}
+		if (options.watch) {
+			System.exit(new GradebookWatcher(options).run() ? 0 : 1);
+		}
+		BatchScript batch = new BatchScript(options);
+		System.exit(batch.run() ? 0 : 1);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Processes every gradebook. Returns false if any of them failed.
+	* --------------------------------------------------------------------
+	*/
+	public boolean run()
+	{
+		ArrayList<String> inputs = inputs(options);
+
+		if (!options.dryRun && (options.template == null || !new File(options.template).isFile())) {
+			System.out.println("No feedback sheet found. Use --template FILE (or 'template=FILE' in the manifest).");
+			return false;
+		}
+
+		ArrayList<File> gradebooks = findGradebooks(inputs);
+		if (gradebooks.isEmpty()) {
+			System.out.println("No gradebook zips found in: " + inputs);
+			return false;
+		}
+		System.out.println("Processing " + gradebooks.size() + " gradebooks, " + options.jobs + " at a time");
+		Metrics.startProgress();
+
+		// Each gradebook is its own job. Their unzips may use their own worker threads as well.
+		ExecutorService jobs = Executors.newFixedThreadPool(Math.min(options.jobs, gradebooks.size()));
+		ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (File gradebook : gradebooks) {
+			results.add(jobs.submit(() -> process(gradebook)));
+		}
+		jobs.shutdown();
+
+		// Waits for every job and reports the ones that failed
+		boolean allSucceeded = true;
+		for (int i = 0; i < results.size(); i++) {
+			try {
+				if (!results.get(i).get()) allSucceeded = false;
+			}
+			catch (Exception e) {
+				System.out.println("Could not process " + gradebooks.get(i) + " ..... " + e);
+				Metrics.error();
+				allSucceeded = false;
+			}
+		}
+
+		Metrics.stopProgress();
+		if (options.metrics != null) Metrics.save(options.metrics);
+
+		System.out.println("---------------------------------------------------------------");
+		System.out.println(allSucceeded
+			? "----------------------- BATCH COMPLETE ------------------------"
+			: "------------------------ BATCH FAILED -------------------------");
+		System.out.println("---------------------------------------------------------------");
+		return allSucceeded;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Unzips and sorts one gradebook, then copies the feedback sheet into
+	* each student folder. This is what Script.runScript does, minus the dialogs.
+	* --------------------------------------------------------------------
+	*/
+	boolean process(File gradebook)
+	{
+		return process(gradebook, options, false);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* resume: carry on from a run that stopped part way (see GradebookWatcher).
+	* Every student folder without a feedback sheet gets one, not just new ones.
+	* --------------------------------------------------------------------
+	*/
+	static boolean process(File gradebook, Options options, boolean resume)
+	{
+		String zipFilePath = gradebook.getPath();
+		String unzipDestination = Script.unzipDestination(zipFilePath);
+		if (options.shards > 0) return new GradebookSharder(options).shard(zipFilePath, unzipDestination, resume);
+		if (options.dryRun) return UnzipPlan.dryRun(zipFilePath, unzipDestination, options);
+		Roster roster = sort(zipFilePath, unzipDestination, options, resume);
+		return roster.size() > 0 && roster.complete();
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Sorts a gradebook (or, with options.students, one shard of it) into
+	* unzipDestination and gives each student their feedback sheet.
+	* Returns the roster, which is empty if nothing could be sorted, and
+	* not complete() if only some of it could be.
+	* --------------------------------------------------------------------
+	*/
+	static Roster sort(String zipFilePath, String unzipDestination, Options options, boolean resume)
+	{
+		Roster roster = Script.unzip(zipFilePath, unzipDestination, options);
+		ArrayList<File> studentFolders = options.incremental ? roster.newFolders() : roster.folders();
+		if (resume) studentFolders = withoutFile(roster.folders(), new File(options.template).getName());
+
+		// Pack mode puts the feedback sheet into each student's zip as it writes it
+		String feedbackFileName = new File(options.template).getName();
+		if (!options.pack) {
+			FeedbackRenderer renderer = FeedbackRenderer.load(options.template);
+			if (renderer != null) renderer.render(roster, studentFolders, feedbackFileName, options.threads);
+			else new FeedbackPlacer(options.feedbackMode).place(options.template, unzipDestination, studentFolders, feedbackFileName);
+		}
+
+		// Student zips are not compiled (pack mode is for syncing, not marking on this machine)
+		if (options.compile && !options.pack) {
+			List<SubmissionCompiler.Result> compiled = new SubmissionCompiler(options).compile(roster);
+			if (options.test != null && compiled != null) new TestHarness(options).run(roster, compiled);
+		}
+
+		System.out.println(zipFilePath + ": " + roster.size() + " students sorted into " + unzipDestination
+			+ (roster.complete() ? "" : ", but some files could not be unzipped"));
+		return roster;
+	}
+
+	// Gets the folders that do not have a file called fileName
+	private static ArrayList<File> withoutFile(ArrayList<File> folders, String fileName)
+	{
+		ArrayList<File> without = new ArrayList<File>();
+		for (File folder : folders) {
+			if (!new File(folder, fileName).exists()) without.add(folder);
+		}
+		return without;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Reads a manifest. Each line is a gradebook zip or a folder of them.
+	* A 'template=FILE' line sets the feedback sheet. Blank lines and lines
+	* starting with '#' are skipped. Relative paths are relative to the manifest.
+	* --------------------------------------------------------------------
+	*/
+	private static void readManifest(Options options, String manifest, ArrayList<String> inputs)
+	{
+		File manifestFolder = new File(manifest).getAbsoluteFile().getParentFile();
+		try (BufferedReader reader = new BufferedReader(new FileReader(manifest))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.equals("") || line.startsWith("#")) continue;
+
+				if (line.startsWith("template=")) {
+					if (options.template == null) options.template = resolve(manifestFolder, line.substring("template=".length()).trim());
+				}
+				else {
+					inputs.add(resolve(manifestFolder, line));
+				}
+			}
+		}
+		catch (IOException e) {
+			System.out.println("Could not read the manifest " + manifest + " ..... " + e.getMessage());
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Gets the zips and folders from the command line and the manifest
+	* (which can also set the feedback sheet).
+	* --------------------------------------------------------------------
+	*/
+	static ArrayList<String> inputs(Options options)
+	{
+		ArrayList<String> inputs = new ArrayList<String>(options.inputs);
+		if (options.manifest != null) readManifest(options, options.manifest, inputs);
+		return inputs;
+	}
+
+	private static String resolve(File folder, String path)
+	{
+		File file = new File(path);
+		return file.isAbsolute() ? path : new File(folder, path).getPath();
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Turns the inputs into a list of gradebook zips. Folders are searched
+	* (not recursively) for zip files.
+	* --------------------------------------------------------------------
+	*/
+	static ArrayList<File> findGradebooks(ArrayList<String> inputs)
+	{
+		ArrayList<File> gradebooks = new ArrayList<File>();
+		for (String input : inputs) {
+			File file = new File(input);
+			if (file.isDirectory()) {
+				File[] zips = file.listFiles((folder, name) -> name.toLowerCase().endsWith(".zip"));
+				if (zips == null) continue;
+				Arrays.sort(zips);
+				gradebooks.addAll(Arrays.asList(zips));
+			}
+			else if (file.isFile() && file.getName().toLowerCase().endsWith(".zip")) {
+				gradebooks.add(file);
+			}
+			else {
+				System.out.println("Skipping " + input + " ..... not a zip file or folder");
+			}
+		}
+		return gradebooks;
+	}
+}
@@ -0,0 +1,69 @@
+/**
+* --------------------------------------------------------------------
+* Buffers (and an Inflater) that the unzip's worker threads take and give
+* back, so a Gradebook of thousands of entries does not allocate a new
+* buffer and Inflater for each one. There are never more in use than
+* there are workers, so memory stays at about 2 x size x threads.
+* --------------------------------------------------------------------
+*/
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Inflater;
+
+public class BufferPool {
+
+	static final int DEFAULT_SIZE = 64 * 1024;
+
+	/**
+	* --------------------------------------------------------------------
+	* What one worker needs to inflate an entry: a buffer for the
+	* compressed bytes, one for the inflated bytes, and an Inflater.
+	* --------------------------------------------------------------------
+	*/
+	static final class Buffers {
+		final byte[] in, out;
+		final Inflater inflater = new Inflater(true);
+
+		Buffers(int size)
+		{
+			in = new byte[size];
+			out = new byte[size];
+		}
+	}
+
+	private final int size;
+	private final ConcurrentLinkedQueue<Buffers> free = new ConcurrentLinkedQueue<Buffers>();
+
+	BufferPool(int size)
+	{
+		this.size = Math.max(size, 4096);
+	}
+
+	int size()
+	{
+		return size;
+	}
+
+	Buffers take()
+	{
+		Buffers buffers = free.poll();
+		return buffers != null ? buffers : new Buffers(size);
+	}
+
+	void give(Buffers buffers)
+	{
+		buffers.inflater.reset();
+		free.add(buffers);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Frees the Inflaters' native memory. Call once every worker has finished.
+	* --------------------------------------------------------------------
+	*/
+	void close()
+	{
+		Buffers buffers;
+		while ((buffers = free.poll()) != null) buffers.inflater.end();
+	}
+}
@@ -0,0 +1,241 @@
+/**
+* --------------------------------------------------------------------
+* Finds files that more than one student handed in, for plagiarism triage.
+* Every file is hashed while it is being unzipped (the bytes are already
+* passing through the unzip's buffer), so nothing is read twice:
+* 		- SHA-256 of the bytes, for files that are exactly the same
+*		- CRC32, Adler32 and length with all whitespace taken out, for source
+*		  files that only differ in indenting, spacing or line endings. It
+*		  only has to match copies up, not resist attack, and both checksums
+*		  are built into the JVM, so it costs far less than a second SHA-256
+*
+* The hashes go into an index of hash -> students. At the end a report
+* ('duplicates.csv' in the sorted folder) lists every hash that more than
+* one student has. Files everyone has (eg, starter code) show up too,
+* with how many students share them, so they are easy to spot and skip.
+*
+* Safe to use from the unzip's worker threads, which is where the hashing
+* happens, so the extra work is spread over the same cores as the unzip.
+* --------------------------------------------------------------------
+*/
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+public class DuplicateIndex {
+
+	static final String REPORT_NAME = "duplicates.csv";
+
+	// 1 for each byte kept in the whitespace-free hash, 0 for whitespace
+	private static final int[] KEEP = new int[256];
+	static {
+		java.util.Arrays.fill(KEEP, 1);
+		for (char c : new char[] { ' ', '\t', '\r', '\n', '\f', 0x0b }) KEEP[c] = 0;
+	}
+
+	// Files whose whitespace does not matter, so they are also hashed without it
+	private static final String[] SOURCE_EXTENSIONS = { ".java", ".c", ".h", ".cpp", ".cc", ".hpp", ".cs", ".py", ".js", ".ts",
+		".html", ".css", ".sql", ".php", ".rb", ".go", ".rs", ".kt", ".scala", ".m", ".r", ".sh", ".txt", ".md", ".xml", ".json" };
+
+	/**
+	* --------------------------------------------------------------------
+	* Hashes one file as its bytes are written. Used by one thread at a time.
+	* --------------------------------------------------------------------
+	*/
+	static final class Hasher {
+		private final MessageDigest exact;
+		private final boolean source;
+		private long size = 0;
+
+		// The whitespace-free hash, and the buffer the bytes without whitespace are gathered in
+		private final CRC32 crc;
+		private final Adler32 adler;
+		private byte[] scratch;
+		private long kept = 0;
+
+		private Hasher(boolean source)
+		{
+			this.exact = sha256();
+			this.source = source;
+			this.crc = source ? new CRC32() : null;
+			this.adler = source ? new Adler32() : null;
+		}
+
+		void update(byte[] bytes, int offset, int count)
+		{
+			exact.update(bytes, offset, count);
+			size += count;
+			if (!source) return;
+
+			// Every byte is copied, but only moves the end on if it is not whitespace (no branches)
+			if (scratch == null || scratch.length < count) scratch = new byte[Math.max(count, 8192)];
+			byte[] scratch = this.scratch;
+			int end = 0;
+			for (int i = offset; i < offset + count; i++) {
+				byte b = bytes[i];
+				scratch[end] = b;
+				end += KEEP[b & 0xff];
+			}
+			crc.update(scratch, 0, end);
+			adler.update(scratch, 0, end);
+			kept += end;
+		}
+
+		String normalizedHash()
+		{
+			return String.format("%08x%08x%x", crc.getValue(), adler.getValue(), kept);
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* One student's copy of a file.
+	* --------------------------------------------------------------------
+	*/
+	private static final class Copy {
+		final String studentNo, file, exactHash;
+		final long size;
+
+		Copy(String studentNo, String file, String exactHash, long size)
+		{
+			this.studentNo = studentNo;
+			this.file = file;
+			this.exactHash = exactHash;
+			this.size = size;
+		}
+	}
+
+	private final ConcurrentHashMap<String, ConcurrentLinkedQueue<Copy>> exact = new ConcurrentHashMap<String, ConcurrentLinkedQueue<Copy>>();
+	private final ConcurrentHashMap<String, ConcurrentLinkedQueue<Copy>> normalized = new ConcurrentHashMap<String, ConcurrentLinkedQueue<Copy>>();
+
+	/**
+	* --------------------------------------------------------------------
+	* Gets a hasher for a file, or null if the file is not worth comparing
+	* (a student's Info.txt is different for everyone).
+	* --------------------------------------------------------------------
+	*/
+	Hasher hasher(String fileName)
+	{
+		if (SubmissionInfo.isInfoFile(fileName)) return null;
+		return new Hasher(isSource(fileName));
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Adds a file once it has been written.
+	* file: its path inside the student's folder, eg, 'attempt/src/Store.java'
+	* --------------------------------------------------------------------
+	*/
+	void add(Hasher hasher, String studentNo, String file)
+	{
+		// Empty files are all the same, and say nothing
+		if (hasher == null || hasher.size == 0) return;
+
+		String exactHash = hex(hasher.exact.digest());
+		Copy copy = new Copy(studentNo, file, exactHash, hasher.size);
+		exact.computeIfAbsent(exactHash, h -> new ConcurrentLinkedQueue<Copy>()).add(copy);
+		if (hasher.source) {
+			normalized.computeIfAbsent(hasher.normalizedHash(), h -> new ConcurrentLinkedQueue<Copy>()).add(copy);
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Writes the report of every file more than one student has, and prints
+	* how many there were. Files that are the same except for whitespace are
+	* only listed when they are not all exactly the same (those are already listed).
+	* Call once the unzip has finished.
+	* --------------------------------------------------------------------
+	*/
+	void writeReport(String destDir)
+	{
+		ArrayList<String> lines = new ArrayList<String>();
+		int identical = report("identical", exact, false, lines);
+		int whitespace = report("whitespace", normalized, true, lines);
+
+		File report = new File(destDir, REPORT_NAME);
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(report))) {
+			writer.write("match,students,student_nos,files,bytes,hash");
+			writer.newLine();
+			for (String line : lines) {
+				writer.write(line);
+				writer.newLine();
+			}
+		}
+		catch (IOException e) {
+			System.out.println("Could not save " + report + " ..... " + e.getMessage());
+			return;
+		}
+		System.out.println(String.format("Duplicates: %d files the same across students, %d the same apart from whitespace. See %s",
+			identical, whitespace, report));
+	}
+
+	// Adds a line for each hash shared by more than one student. Returns how many there were.
+	private static int report(String match, Map<String, ConcurrentLinkedQueue<Copy>> index, boolean onlyIfDifferent, List<String> lines)
+	{
+		ArrayList<String> found = new ArrayList<String>();
+		for (Map.Entry<String, ConcurrentLinkedQueue<Copy>> entry : index.entrySet()) {
+			TreeSet<String> students = new TreeSet<String>(), files = new TreeSet<String>(), exactHashes = new TreeSet<String>();
+			long size = 0;
+			for (Copy copy : entry.getValue()) {
+				students.add(copy.studentNo);
+				files.add(copy.studentNo + "/" + copy.file);
+				exactHashes.add(copy.exactHash);
+				size = Math.max(size, copy.size);
+			}
+			if (students.size() < 2 || (onlyIfDifferent && exactHashes.size() < 2)) continue;
+
+			found.add(match + "," + students.size() + "," + Roster.csv(String.join(" ", students)) + ","
+				+ Roster.csv(String.join(" ", files)) + "," + size + "," + entry.getKey());
+		}
+
+		// Fewest students first: a pair is more interesting than a file the whole class has
+		Collections.sort(found, (a, b) -> {
+			int byStudents = Integer.compare(Integer.parseInt(a.split(",")[1]), Integer.parseInt(b.split(",")[1]));
+			return byStudents != 0 ? byStudents : a.compareTo(b);
+		});
+		lines.addAll(found);
+		return found.size();
+	}
+
+	private static boolean isSource(String fileName)
+	{
+		String lower = fileName.toLowerCase(Locale.ROOT);
+		for (String extension : SOURCE_EXTENSIONS) {
+			if (lower.endsWith(extension)) return true;
+		}
+		return false;
+	}
+
+	private static MessageDigest sha256()
+	{
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			// Every Java has SHA-256
+			throw new AssertionError(e);
+		}
+	}
+
+	private static String hex(byte[] bytes)
+	{
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return hex.toString();
+	}
+}
@@ -0,0 +1,276 @@
+/**
+* --------------------------------------------------------------------
+* Puts the feedback sheet into every student folder.
+* Instead of writing a full copy for each student it can:
+* 		- LINK:  hard link every sheet to one copy of the template
+*		- CLONE: make copy-on-write clones (cp --reflink, eg, on Btrfs, XFS or APFS)
+*		- SYMLINK: symbolic link every sheet to one copy of the template
+* A full copy is always the fallback if the filesystem cannot do the above.
+*
+* With LINK and SYMLINK every student's sheet is the same file, so they are
+* only for sheets that will be read, not edited. They are only used when
+* asked for, with a warning, and the one copy is made read-only, so saving
+* a sheet in place fails instead of changing every student's sheet.
+* COPY and CLONE are safe to edit, as each sheet is its own file.
+*
+* For LINK, CLONE and SYMLINK, one copy of the template is kept in the sorted
+* folder (the 'master'), so it is on the same drive as the student folders
+* and the original template can be moved or edited without affecting them.
+* A master is never written over: an edited template gets a master of its
+* own, so sheets already placed keep what they had.
+* --------------------------------------------------------------------
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+public class FeedbackPlacer {
+
+	enum Mode { COPY, LINK, CLONE, SYMLINK }
+
+	// Folder inside the sorted folder that holds the master copy of the template
+	static final String MASTER_FOLDER = ".feedback";
+
+	private final Mode mode;
+
+	// How each sheet actually ended up being placed, indexed by Mode
+	private final int[] placed = new int[Mode.values().length];
+	private int failed = 0;
+
+	// Set once cloning has failed, so the rest are copied without trying again
+	private boolean cloneUnsupported = false;
+
+	public FeedbackPlacer(Mode mode)
+	{
+		this.mode = mode;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Gets the mode from its name on the command line, eg, 'link'.
+	* Returns null if there is no such mode.
+	* --------------------------------------------------------------------
+	*/
+	static Mode mode(String name)
+	{
+		for (Mode mode : Mode.values()) {
+			if (mode.name().equalsIgnoreCase(name)) return mode;
+		}
+		return null;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Places the template into each student folder as feedbackFileName and
+	* prints which strategy was used, how many bytes were saved and how long it took.
+	* --------------------------------------------------------------------
+	*/
+	public void place(String templatePath, String unzipDestination, List<File> studentFolders, String feedbackFileName)
+	{
+		long start = System.nanoTime();
+		Path template = new File(templatePath).toPath();
+		Path source = template;
+
+		boolean shared = mode == Mode.LINK || mode == Mode.SYMLINK;
+		if (shared && !studentFolders.isEmpty()) {
+			System.out.println("Warning: with --feedback-mode " + mode.name().toLowerCase(Locale.ROOT) + " every student's sheet is the same read-only file, "
+				+ "so feedback cannot be saved into it. Use copy or clone if the sheets will be edited.");
+		}
+
+		// Links and clones are made from the master copy in the sorted folder
+		if (mode != Mode.COPY && !studentFolders.isEmpty()) {
+			try {
+				source = master(template, unzipDestination, feedbackFileName);
+
+				// Linked sheets share the master's contents (and, for hard links, its permissions)
+				if (shared && !source.toFile().setReadOnly()) {
+					System.out.println("Could not make the master copy of the feedback sheet read-only, so every sheet will be copied ..... " + source);
+					source = template;
+				}
+			}
+			catch (IOException e) {
+				System.out.println("Could not make the master copy of the feedback sheet, so every sheet will be copied ..... " + e.getMessage());
+			}
+		}
+
+		for (File folder : studentFolders) {
+			place(source, new File(folder, feedbackFileName).toPath(), source != template ? mode : Mode.COPY);
+		}
+
+		report(template, start);
+		Metrics.phase(Metrics.Phase.FEEDBACK, start);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Places one sheet, falling back to a full copy if the mode does not work here.
+	* --------------------------------------------------------------------
+	*/
+	private void place(Path source, Path destination, Mode mode)
+	{
+		try {
+			if (mode == Mode.LINK) {
+				Files.createLink(destination, source);
+				placed[Mode.LINK.ordinal()]++;
+				return;
+			}
+			if (mode == Mode.SYMLINK) {
+				Files.createSymbolicLink(destination, source.toAbsolutePath());
+				placed[Mode.SYMLINK.ordinal()]++;
+				return;
+			}
+			if (mode == Mode.CLONE && !cloneUnsupported && !Files.exists(destination)) {
+				if (clone(source, destination)) {
+					// The master can be read-only from a link run, and the clone is cp's copy of its permissions
+					destination.toFile().setWritable(true);
+					placed[Mode.CLONE.ordinal()]++;
+					return;
+				}
+				// cp can leave an empty file behind when the clone fails
+				Files.deleteIfExists(destination);
+				cloneUnsupported = true;
+				System.out.println("This drive cannot clone files, so the feedback sheets will be copied instead.");
+			}
+		}
+		catch (IOException | UnsupportedOperationException e) {
+			// Falls through to the full copy, eg, if links are not allowed on this drive
+		}
+
+		try {
+			Files.copy(source, destination);
+			destination.toFile().setWritable(true);
+			placed[Mode.COPY.ordinal()]++;
+		}
+		// In case the file cannot be copied. For example, if it already exists.
+		catch (IOException e) {
+			failed++;
+			Metrics.error();
+			System.out.println("Could not copy the feedback sheet to: " + destination + " ..... Check if it already exists.");
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Makes a copy-on-write clone with 'cp --reflink=always'.
+	* Java has no way to clone a file itself, and Windows has no such command,
+	* so this returns false there (or whenever the clone fails).
+	* --------------------------------------------------------------------
+	*/
+	private static boolean clone(Path source, Path destination)
+	{
+		if (System.getProperty("os.name").toLowerCase(Locale.ROOT).startsWith("windows")) return false;
+		try {
+			Process cp = new ProcessBuilder("cp", "--reflink=always", source.toString(), destination.toString())
+				.redirectErrorStream(true)
+				.redirectOutput(ProcessBuilder.Redirect.appendTo(nullFile()))
+				.start();
+			return cp.waitFor() == 0;
+		}
+		catch (IOException e) {
+			return false;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	static File nullFile()
+	{
+		return new File(File.separatorChar == '\\' ? "NUL" : "/dev/null");
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Copies the template into the sorted folder once, for the links to point
+	* to, eg, '.feedback/3f2a91c0/Feedback.xlsx'. Each master is in a folder
+	* named after the template's CRC, so a later run with the same template
+	* uses it again, and one with an edited template gets a new master
+	* instead of changing the sheets already placed. A master that has been
+	* changed since (eg, by a linked sheet saved before it was read-only) is
+	* left alone too.
+	* --------------------------------------------------------------------
+	*/
+	private static Path master(Path template, String unzipDestination, String feedbackFileName) throws IOException
+	{
+		String id = String.format("%08x", crc(template));
+		for (int n = 1; ; n++) {
+			File masterFolder = new File(new File(unzipDestination, MASTER_FOLDER), n == 1 ? id : id + "-" + n);
+			Path master = new File(masterFolder, feedbackFileName).toPath();
+			if (Files.exists(master)) {
+				if (sameContents(master, template)) return master;
+				continue;
+			}
+			masterFolder.mkdirs();
+			Files.copy(template, master);
+			return master;
+		}
+	}
+
+	private static long crc(Path file) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[BufferPool.DEFAULT_SIZE];
+		try (InputStream in = Files.newInputStream(file)) {
+			int len;
+			while ((len = in.read(buffer)) > 0) crc.update(buffer, 0, len);
+		}
+		return crc.getValue();
+	}
+
+	private static boolean sameContents(Path a, Path b) throws IOException
+	{
+		if (Files.size(a) != Files.size(b)) return false;
+		byte[] bufferA = new byte[BufferPool.DEFAULT_SIZE], bufferB = new byte[BufferPool.DEFAULT_SIZE];
+		try (InputStream inA = Files.newInputStream(a); InputStream inB = Files.newInputStream(b)) {
+			while (true) {
+				int lenA = readFully(inA, bufferA), lenB = readFully(inB, bufferB);
+				if (lenA != lenB) return false;
+				for (int i = 0; i < lenA; i++) {
+					if (bufferA[i] != bufferB[i]) return false;
+				}
+				if (lenA < bufferA.length) return true;
+			}
+		}
+	}
+
+	// Reads until the buffer is full or the file ends. Returns how much was read.
+	private static int readFully(InputStream in, byte[] buffer) throws IOException
+	{
+		int length = 0, len;
+		while (length < buffer.length && (len = in.read(buffer, length, buffer.length - length)) > 0) length += len;
+		return length;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Prints the strategies used, the bytes saved and the time taken.
+	* --------------------------------------------------------------------
+	*/
+	private void report(Path template, long startNanos)
+	{
+		long size = template.toFile().length();
+		int shared = placed[Mode.LINK.ordinal()] + placed[Mode.CLONE.ordinal()] + placed[Mode.SYMLINK.ordinal()];
+
+		StringBuilder used = new StringBuilder();
+		for (Mode mode : Mode.values()) {
+			if (placed[mode.ordinal()] == 0) continue;
+			if (used.length() > 0) used.append(", ");
+			used.append(mode.name().toLowerCase(Locale.ROOT)).append(": ").append(placed[mode.ordinal()]);
+		}
+		if (failed > 0) used.append(used.length() > 0 ? ", " : "").append("failed: ").append(failed);
+		if (used.length() == 0) used.append("none placed");
+
+		// The master copy costs one template's worth of space
+		long saved = shared > 0 ? shared * size - size : 0;
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		System.out.println(String.format("Feedback sheets (%s): %s. %d bytes saved in %.3f s",
+			mode.name().toLowerCase(Locale.ROOT), used, saved, seconds));
+	}
+}
@@ -0,0 +1,404 @@
+/**
+* --------------------------------------------------------------------
+* Fills in each student's details on their feedback sheet, so tutors no
+* longer type every name and number in by hand. Wherever the template has
+* a placeholder, eg,
+*
+*		Name:    {{name}}
+*		Number:  {{studentNo}}
+*
+* each student's sheet gets their own details from their Info.txt
+* ({{studentNo}}, {{name}}, {{assignment}}, {{submitted}}, {{due}},
+* {{grade}} or {{attempt}}). A template without placeholders is copied
+* as it always has been.
+*
+* An xlsx (or docx) is a zip of XML parts. The template is read once:
+* parts with a placeholder are split into the text around each one, and
+* every other part is kept exactly as it is stored (still compressed).
+* A student's sheet is then built in memory - the few changed parts
+* deflated, the rest copied - and written to disk in one go. Sheets are
+* built in parallel, one student per job.
+*
+* Placeholders must be typed in one go: if only part of a cell's text is
+* formatted differently, Excel splits the text and the placeholder is not found.
+* --------------------------------------------------------------------
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+public class FeedbackRenderer {
+
+	// The placeholders a template can have, eg, '{{name}}'
+	static final String[] FIELDS = { "studentNo", "name", "assignment", "submitted", "due", "grade", "attempt" };
+
+	// Filled in parts smaller than this are stored, not deflated. Deflating a
+	// few hundred bytes of shared strings saves next to nothing, and costs
+	// more than building the rest of the sheet (zlib clears its tables each time).
+	private static final int DEFLATE_FROM = 4096;
+
+	/**
+	* --------------------------------------------------------------------
+	* One part of the template. Either kept as it is (raw), or the text
+	* around each placeholder: text[0], field[0], text[1], ... text[n].
+	* --------------------------------------------------------------------
+	*/
+	private static final class Part {
+		final ZipWriter.Prepared raw;
+		final String name;
+		final long dosTime;
+		final byte[][] text;
+		final int[] fields;
+
+		Part(ZipWriter.Prepared raw)
+		{
+			this.raw = raw;
+			this.name = raw.name;
+			this.dosTime = raw.dosTime;
+			this.text = null;
+			this.fields = null;
+		}
+
+		Part(String name, long dosTime, byte[][] text, int[] fields)
+		{
+			this.raw = null;
+			this.name = name;
+			this.dosTime = dosTime;
+			this.text = text;
+			this.fields = fields;
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Where a sheet is built in memory. Channels.newChannel would do, but it
+	* locks and checks for interrupts on every write, which cost more than
+	* building the sheet did.
+	* --------------------------------------------------------------------
+	*/
+	private static final class Memory implements WritableByteChannel {
+		byte[] bytes;
+		int length = 0;
+
+		Memory(int size)
+		{
+			bytes = new byte[size];
+		}
+
+		@Override
+		public int write(ByteBuffer buffer)
+		{
+			int count = buffer.remaining();
+			if (length + count > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+			buffer.get(bytes, length, count);
+			length += count;
+			return count;
+		}
+
+		@Override
+		public boolean isOpen()
+		{
+			return true;
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+
+	private final ArrayList<Part> parts;
+	private final int placeholders;
+
+	// About how big a filled in sheet is, so its buffer does not have to grow
+	private final int sheetSize;
+
+	// Deflaters the jobs take and give back (see BufferPool)
+	private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+
+	private FeedbackRenderer(ArrayList<Part> parts, int placeholders, int sheetSize)
+	{
+		this.parts = parts;
+		this.placeholders = placeholders;
+		this.sheetSize = sheetSize;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Reads a template. Returns null if it has no placeholders, or is not
+	* a zip (eg, a PDF), so it should just be copied.
+	* --------------------------------------------------------------------
+	*/
+	static FeedbackRenderer load(String templatePath)
+	{
+		File template = new File(templatePath);
+		ArrayList<Part> parts = new ArrayList<Part>();
+		int placeholders = 0;
+
+		try (ZipIndex zip = new ZipIndex(template)) {
+			for (ZipIndex.Entry ze : zip.entries()) {
+				if (ze.size > Integer.MAX_VALUE || ze.compressedSize > Integer.MAX_VALUE) throw new ZipException(ze.name + " is too big");
+
+				Part part = ze.name.endsWith(".xml") ? split(ze, read(zip.inputStream(ze, 8192), (int) ze.size)) : null;
+				if (part == null) {
+					byte[] raw = read(zip.rawInputStream(ze), (int) ze.compressedSize);
+					part = new Part(new ZipWriter.Prepared(ze.name, ze.method, ze.crc, ze.size, ze.dosTime, raw));
+				}
+				else {
+					placeholders += part.fields.length;
+				}
+				parts.add(part);
+			}
+		}
+		catch (ZipException e) {
+			// Not a zip, so there is nothing to fill in
+			return null;
+		}
+		catch (IOException e) {
+			System.out.println("Could not read the feedback sheet " + template + ", so it will be copied as it is ..... " + e.getMessage());
+			return null;
+		}
+		return placeholders > 0 ? new FeedbackRenderer(parts, placeholders, (int) Math.min(template.length() + 4096, Integer.MAX_VALUE - 8)) : null;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Splits an XML part at its placeholders. Returns null if it has none.
+	* Anything in '{{ }}' that is not a known field is left as it is.
+	* --------------------------------------------------------------------
+	*/
+	private static Part split(ZipIndex.Entry ze, byte[] xml)
+	{
+		String text = new String(xml, StandardCharsets.UTF_8);
+		ArrayList<byte[]> pieces = new ArrayList<byte[]>();
+		ArrayList<Integer> fields = new ArrayList<Integer>();
+
+		// start: where the next piece of text starts. from: where to look for the next placeholder.
+		int start = 0, from = 0, open;
+		while ((open = text.indexOf("{{", from)) >= 0) {
+			int close = text.indexOf("}}", open + 2);
+			if (close < 0) break;
+			int field = field(text.substring(open + 2, close).trim());
+			if (field < 0) {
+				from = open + 2;
+				continue;
+			}
+			pieces.add(text.substring(start, open).getBytes(StandardCharsets.UTF_8));
+			fields.add(field);
+			start = from = close + 2;
+		}
+		if (fields.isEmpty()) return null;
+		pieces.add(text.substring(start).getBytes(StandardCharsets.UTF_8));
+
+		int[] fieldArray = new int[fields.size()];
+		for (int i = 0; i < fieldArray.length; i++) fieldArray[i] = fields.get(i);
+		return new Part(ze.name, ze.dosTime, pieces.toArray(new byte[pieces.size()][]), fieldArray);
+	}
+
+	private static int field(String name)
+	{
+		for (int i = 0; i < FIELDS.length; i++) {
+			if (FIELDS[i].equalsIgnoreCase(name)) return i;
+		}
+		return -1;
+	}
+
+	private static byte[] read(InputStream in, int size) throws IOException
+	{
+		try (InputStream input = in) {
+			byte[] bytes = new byte[size];
+			int read = 0, len;
+			while (read < size && (len = input.read(bytes, read, size - read)) > 0) read += len;
+			if (read < size) throw new ZipException("Unexpected end of the feedback sheet");
+			return bytes;
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Writes a filled in sheet into each student folder as feedbackFileName,
+	* on the given number of threads (0 = one per core), and prints how many
+	* were written and how long it took.
+	* --------------------------------------------------------------------
+	*/
+	public void render(Roster roster, List<File> studentFolders, String feedbackFileName, int threads)
+	{
+		long start = System.nanoTime();
+		AtomicInteger written = new AtomicInteger(), failed = new AtomicInteger();
+
+		HashMap<File, Roster.Student> byFolder = new HashMap<File, Roster.Student>();
+		for (Roster.Student student : roster.students()) byFolder.put(student.folder, student);
+
+		if (threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, studentFolders.size())));
+		try {
+			for (File folder : studentFolders) {
+				Roster.Student student = byFolder.get(folder);
+				if (student == null) continue;
+				workers.execute(() -> {
+					if (write(student, new File(folder, feedbackFileName))) written.incrementAndGet();
+					else failed.incrementAndGet();
+				});
+			}
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			workers.shutdownNow();
+			close();
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("Feedback sheets (filled in, %d placeholders): %d written%s in %.3f s",
+			placeholders, written.get(), failed.get() > 0 ? ", failed: " + failed.get() : "", seconds));
+		Metrics.phase(Metrics.Phase.FEEDBACK, start);
+	}
+
+	// Writes one student's sheet. Runs on a worker thread.
+	private boolean write(Roster.Student student, File sheet)
+	{
+		Metrics.verbose("Filling in " + sheet.getAbsolutePath());
+		try {
+			Memory memory = render(values(student, Roster.info(student)));
+			try (OutputStream out = Files.newOutputStream(sheet.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+				out.write(memory.bytes, 0, memory.length);
+			}
+			return true;
+		}
+		// In case the file cannot be written. For example, if it already exists.
+		catch (IOException e) {
+			Metrics.error();
+			System.out.println("Could not write the feedback sheet to: " + sheet + " ..... Check if it already exists.");
+			return false;
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Gets a student's sheet ready to be added to their zip (pack mode).
+	* --------------------------------------------------------------------
+	*/
+	ZipWriter.Prepared prepare(String feedbackFileName, Roster.Student student, SubmissionInfo info) throws IOException
+	{
+		Memory memory = render(values(student, info != null ? info : new SubmissionInfo()));
+		return ZipWriter.stored(feedbackFileName, Arrays.copyOf(memory.bytes, memory.length));
+	}
+
+	// Gets the value of each field for a student, in the order of FIELDS
+	private static String[] values(Roster.Student student, SubmissionInfo info)
+	{
+		String studentNo = info.studentNo.equals("") ? student.studentNo : info.studentNo;
+		return new String[] { studentNo, info.name, info.assignment, info.submitted, info.due, info.grade, info.attempt };
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Builds a filled in sheet in memory.
+	* --------------------------------------------------------------------
+	*/
+	private Memory render(String[] values) throws IOException
+	{
+		byte[][] escaped = new byte[values.length][];
+		for (int i = 0; i < values.length; i++) escaped[i] = escape(values[i]).getBytes(StandardCharsets.UTF_8);
+
+		Memory sheet = new Memory(sheetSize);
+		try (ZipWriter writer = new ZipWriter(sheet)) {
+			for (Part part : parts) {
+				writer.add(part.raw != null ? part.raw : fill(part, escaped));
+			}
+		}
+		return sheet;
+	}
+
+	// Puts the values into a part and deflates it (if it is big enough to be worth it)
+	private ZipWriter.Prepared fill(Part part, byte[][] values)
+	{
+		int size = part.text[0].length;
+		for (int i = 0; i < part.fields.length; i++) size += values[part.fields[i]].length + part.text[i + 1].length;
+
+		byte[] xml = new byte[size];
+		int at = 0;
+		for (int i = 0; i < part.text.length; i++) {
+			if (i > 0) {
+				byte[] value = values[part.fields[i - 1]];
+				System.arraycopy(value, 0, xml, at, value.length);
+				at += value.length;
+			}
+			System.arraycopy(part.text[i], 0, xml, at, part.text[i].length);
+			at += part.text[i].length;
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(xml, 0, size);
+		if (size < DEFLATE_FROM) return new ZipWriter.Prepared(part.name, ZipIndex.STORED, crc.getValue(), size, part.dosTime, xml);
+
+		// Deflated data is never much bigger than the data (5 bytes per 16 KB block, at worst)
+		byte[] deflated = new byte[size + size / 1000 + 64];
+		int length = 0;
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflater.setInput(xml);
+			deflater.finish();
+			while (!deflater.finished()) {
+				if (length == deflated.length) deflated = Arrays.copyOf(deflated, deflated.length * 2);
+				length += deflater.deflate(deflated, length, deflated.length - length);
+			}
+		}
+		finally {
+			deflater.reset();
+			deflaters.add(deflater);
+		}
+		return new ZipWriter.Prepared(part.name, ZipIndex.DEFLATED, crc.getValue(), size, part.dosTime, Arrays.copyOf(deflated, length));
+	}
+
+	// Escapes text for XML, eg, 'O'Brien & Co' -> 'O&apos;Brien &amp; Co'
+	private static String escape(String value)
+	{
+		StringBuilder escaped = new StringBuilder(value.length() + 16);
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '&') escaped.append("&amp;");
+			else if (c == '<') escaped.append("&lt;");
+			else if (c == '>') escaped.append("&gt;");
+			else if (c == '"') escaped.append("&quot;");
+			else if (c == '\'') escaped.append("&apos;");
+			// Control characters are not allowed in XML 1.0
+			else if (c >= 0x20 || c == '\t') escaped.append(c);
+		}
+		return escaped.toString();
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Frees the Deflaters' native memory. Call once every sheet is written.
+	* --------------------------------------------------------------------
+	*/
+	void close()
+	{
+		Deflater deflater;
+		while ((deflater = deflaters.poll()) != null) deflater.end();
+	}
+}
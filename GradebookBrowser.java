@@ -0,0 +1,375 @@
+/**
+* --------------------------------------------------------------------
+* Shows a Gradebook sorted into student folders in a web browser, without
+* unzipping it, for spot checks of a few students.
+*
+* Only the zip's central directory is read (through ZipIndex), so the
+* sorted view of even a very large Gradebook is ready in well under a
+* second. Each file is unzipped only when it is opened, and the most
+* recently opened files are kept in memory (up to a limit in MB), so
+* opening them again is instant. Files bigger than a quarter of that
+* limit are streamed from the zip instead of being kept.
+*
+* The pages are served by the JDK's own HTTP server, on this machine only
+* (localhost):
+* 		/                      every student, with how many files they have
+*		/c3220929/             a student's files, named as they would be sorted
+*		/c3220929/FILE         the file itself
+* --------------------------------------------------------------------
+*/
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLConnection;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+public class GradebookBrowser {
+
+	// Files shown as text in the browser rather than downloaded
+	private static final String[] TEXT_EXTENSIONS = { ".java", ".txt", ".csv", ".md", ".py", ".c", ".h", ".cpp", ".js", ".sql", ".xml", ".json", ".properties" };
+
+	/**
+	* --------------------------------------------------------------------
+	* The most recently opened files, least recently used first, up to
+	* maxBytes in total. Used by the server's threads.
+	* --------------------------------------------------------------------
+	*/
+	static final class FileCache {
+		private final long maxBytes;
+		private final LinkedHashMap<ZipIndex.Entry, byte[]> files = new LinkedHashMap<ZipIndex.Entry, byte[]>(16, 0.75f, true);
+		private long bytes = 0;
+		private int hits = 0, misses = 0;
+
+		FileCache(long maxBytes)
+		{
+			this.maxBytes = maxBytes;
+		}
+
+		// Whether a file this big is worth keeping (a few big files would push out everything else)
+		boolean fits(long size)
+		{
+			return size <= maxBytes / 4;
+		}
+
+		synchronized byte[] get(ZipIndex.Entry entry)
+		{
+			byte[] data = files.get(entry);
+			if (data != null) hits++;
+			else misses++;
+			return data;
+		}
+
+		synchronized void put(ZipIndex.Entry entry, byte[] data)
+		{
+			if (files.put(entry, data) == null) bytes += data.length;
+			Iterator<byte[]> oldest = files.values().iterator();
+			while (bytes > maxBytes && oldest.hasNext()) {
+				bytes -= oldest.next().length;
+				oldest.remove();
+			}
+		}
+
+		synchronized String summary()
+		{
+			return files.size() + " files (" + bytes / 1024 + " KB) cached, " + hits + " hits, " + misses + " misses";
+		}
+	}
+
+	private final Options options;
+	private final File zipFile;
+	private ZipIndex zip;
+
+	// Student number -> sorted file name -> entry, as Script.unzip would lay them out
+	private final TreeMap<String, TreeMap<String, ZipIndex.Entry>> students = new TreeMap<String, TreeMap<String, ZipIndex.Entry>>();
+	private final FileCache cache;
+
+	public GradebookBrowser(Options options)
+	{
+		this.options = options;
+		this.zipFile = options.inputs.isEmpty() ? null : new File(options.inputs.get(0));
+		this.cache = new FileCache(options.browseCache * 1024L * 1024L);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Reads the Gradebook's central directory and starts serving it.
+	* Returns false if it could not be. The server keeps running (and the
+	* JVM with it) until the script is stopped.
+	* --------------------------------------------------------------------
+	*/
+	public boolean start()
+	{
+		if (zipFile == null || !zipFile.isFile()) {
+			System.out.println("No gradebook zip found. Use --browse GRADEBOOK.zip");
+			return false;
+		}
+		if (options.inputs.size() > 1) System.out.println("Only one gradebook can be browsed at a time, so only " + zipFile + " is shown.");
+
+		long start = System.nanoTime();
+		try {
+			zip = new ZipIndex(zipFile);
+		}
+		catch (IOException e) {
+			System.out.println("Could not read " + zipFile + " ..... " + e.getMessage());
+			return false;
+		}
+		int files = index();
+
+		HttpServer server;
+		try {
+			server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), options.browsePort), 0);
+		}
+		catch (IOException e) {
+			System.out.println("Could not start the browser on port " + options.browsePort + " ..... " + e.getMessage());
+			return false;
+		}
+		server.createContext("/", this::handle);
+		server.setExecutor(Executors.newFixedThreadPool(options.threads > 0 ? options.threads : 4));
+		server.start();
+
+		System.out.println(String.format("Browsing %d students (%d files) in %s, ready in %.3f s", students.size(), files, zipFile.getName(), (System.nanoTime() - start) / 1e9));
+		System.out.println("Open http://localhost:" + server.getAddress().getPort() + "/ in a web browser. Press Ctrl+C to stop.");
+		return true;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Sorts every entry into its student, as Script.unzip would, without
+	* reading any of them. Returns how many files there are.
+	* --------------------------------------------------------------------
+	*/
+	private int index()
+	{
+		NamingScheme scheme = options.naming;
+		NamingScheme.ParsedName parsed = new NamingScheme.ParsedName();
+		int files = 0;
+		for (ZipIndex.Entry ze : zip.entries()) {
+			if (ze.isDirectory()) continue;
+			if (scheme == null) scheme = NamingScheme.detect(ze.name);
+			scheme.read(ze.name, parsed);
+			students.computeIfAbsent(parsed.studentNo(), s -> new TreeMap<String, ZipIndex.Entry>()).put(parsed.sortedFileName(), ze);
+			files++;
+		}
+		return files;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException
+	{
+		try {
+			if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+				send(exchange, 405, "text/plain", "Only GET is supported");
+				return;
+			}
+
+			// '/c3220929/c3220929_Store.java' -> 'c3220929', 'c3220929_Store.java'
+			String path = exchange.getRequestURI().getPath();
+			String[] parts = path.substring(1).split("/", 2);
+			if (parts[0].equals("")) {
+				send(exchange, 200, "text/html; charset=utf-8", studentsPage());
+				return;
+			}
+			TreeMap<String, ZipIndex.Entry> files = students.get(parts[0]);
+			if (files == null) {
+				send(exchange, 404, "text/plain", "No student " + parts[0]);
+			}
+			else if (parts.length == 1 || parts[1].equals("")) {
+				send(exchange, 200, "text/html; charset=utf-8", filesPage(parts[0], files));
+			}
+			else if (files.containsKey(parts[1])) {
+				sendFile(exchange, parts[1], files.get(parts[1]));
+			}
+			else {
+				send(exchange, 404, "text/plain", parts[0] + " has no file " + parts[1]);
+			}
+		}
+		catch (IOException e) {
+			// Most often the browser has gone before the file was sent
+			Metrics.verbose("Could not send " + exchange.getRequestURI() + " ..... " + e.getMessage());
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	private String studentsPage()
+	{
+		StringBuilder page = header(zipFile.getName());
+		page.append("<p>").append(students.size()).append(" students. ").append(escape(cache.summary())).append("</p>\n<table>\n");
+		page.append("<tr><th>Student</th><th>Files</th><th>Size</th></tr>\n");
+		for (Map.Entry<String, TreeMap<String, ZipIndex.Entry>> student : students.entrySet()) {
+			long size = 0;
+			for (ZipIndex.Entry ze : student.getValue().values()) size += ze.size;
+			page.append("<tr><td><a href=\"/").append(encode(student.getKey())).append("/\">").append(escape(student.getKey())).append("</a></td><td>")
+				.append(student.getValue().size()).append("</td><td>").append(size(size)).append("</td></tr>\n");
+		}
+		return page.append("</table>\n</body></html>\n").toString();
+	}
+
+	private String filesPage(String studentNo, TreeMap<String, ZipIndex.Entry> files)
+	{
+		StringBuilder page = header(studentNo);
+		page.append("<p><a href=\"/\">All students</a></p>\n");
+
+		// Their Info.txt is small, so their details are shown too
+		ZipIndex.Entry infoEntry = files.get(studentNo + SubmissionInfo.INFO_SUFFIX);
+		if (infoEntry != null) {
+			try {
+				byte[] data = read(infoEntry);
+				SubmissionInfo info = new SubmissionInfo();
+				info.update(data, 0, data.length);
+				info.finish();
+				page.append("<p>").append(escape(info.name)).append(info.submitted.equals("") ? "" : ", submitted " + escape(info.submitted)).append("</p>\n");
+			}
+			catch (IOException e) {
+				page.append("<p>Could not read their Info.txt ..... ").append(escape(e.getMessage())).append("</p>\n");
+			}
+		}
+
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+		page.append("<table>\n<tr><th>File</th><th>Size</th><th>Modified</th></tr>\n");
+		for (Map.Entry<String, ZipIndex.Entry> file : files.entrySet()) {
+			long time = file.getValue().time();
+			page.append("<tr><td><a href=\"/").append(encode(studentNo)).append("/").append(encode(file.getKey())).append("\">")
+				.append(escape(file.getKey())).append("</a></td><td>").append(size(file.getValue().size)).append("</td><td>")
+				.append(time < 0 ? "" : dateFormat.format(new Date(time))).append("</td></tr>\n");
+		}
+		return page.append("</table>\n</body></html>\n").toString();
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Sends one file, unzipping it now unless it is in the cache.
+	* Big files are streamed straight from the zip and not kept.
+	* --------------------------------------------------------------------
+	*/
+	private void sendFile(HttpExchange exchange, String fileName, ZipIndex.Entry ze) throws IOException
+	{
+		exchange.getResponseHeaders().set("Content-Type", contentType(fileName));
+		String leaf = fileName.substring(fileName.lastIndexOf('/') + 1);
+		if (!contentType(fileName).startsWith("text/")) exchange.getResponseHeaders().set("Content-Disposition", "inline; filename=\"" + leaf.replace("\"", "") + "\"");
+		boolean head = exchange.getRequestMethod().equals("HEAD");
+
+		if (!cache.fits(ze.size)) {
+			exchange.sendResponseHeaders(200, head ? -1 : ze.size);
+			if (head) return;
+			try (InputStream in = zip.inputStream(ze, options.bufferSize); OutputStream out = exchange.getResponseBody()) {
+				byte[] buffer = new byte[options.bufferSize];
+				int len;
+				while ((len = in.read(buffer)) > 0) out.write(buffer, 0, len);
+			}
+			return;
+		}
+
+		byte[] data;
+		try {
+			data = read(ze);
+		}
+		catch (ZipException e) {
+			send(exchange, 500, "text/plain", "Could not unzip " + ze.name + " ..... " + e.getMessage());
+			return;
+		}
+		exchange.sendResponseHeaders(200, head ? -1 : data.length == 0 ? -1 : data.length);
+		if (head || data.length == 0) return;
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(data);
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Gets a file's bytes from the cache, or unzips (and checks) it and
+	* keeps it there.
+	* --------------------------------------------------------------------
+	*/
+	private byte[] read(ZipIndex.Entry ze) throws IOException
+	{
+		byte[] data = cache.get(ze);
+		if (data != null) return data;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.max(32, Math.min(ze.size, Integer.MAX_VALUE - 8)));
+		try (InputStream in = zip.inputStream(ze, options.bufferSize)) {
+			byte[] buffer = new byte[options.bufferSize];
+			int len;
+			while ((len = in.read(buffer)) > 0) bytes.write(buffer, 0, len);
+		}
+		data = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		if (crc.getValue() != ze.crc) throw new ZipException(ze.name + " is corrupt (its CRC does not match)");
+		if (cache.fits(data.length)) cache.put(ze, data);
+		return data;
+	}
+
+	private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException
+	{
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		boolean head = exchange.getRequestMethod().equals("HEAD");
+		exchange.sendResponseHeaders(status, head ? -1 : bytes.length);
+		if (head) return;
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private static String contentType(String fileName)
+	{
+		String lower = fileName.toLowerCase();
+		for (String extension : TEXT_EXTENSIONS) {
+			if (lower.endsWith(extension)) return "text/plain; charset=utf-8";
+		}
+		String type = URLConnection.guessContentTypeFromName(fileName);
+		return type != null ? type : "application/octet-stream";
+	}
+
+	private static StringBuilder header(String title)
+	{
+		return new StringBuilder("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>").append(escape(title))
+			.append("</title><style>body{font-family:sans-serif} td,th{padding:2px 12px;text-align:left}</style></head><body>\n<h1>")
+			.append(escape(title)).append("</h1>\n");
+	}
+
+	private static String size(long bytes)
+	{
+		return bytes < 1024 ? bytes + " B" : bytes < 1024 * 1024 ? bytes / 1024 + " KB" : String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+	}
+
+	private static String escape(String text)
+	{
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	// Encodes each part of a path for a link, keeping the '/' between them
+	private static String encode(String path)
+	{
+		StringBuilder encoded = new StringBuilder();
+		try {
+			for (String part : path.split("/", -1)) {
+				if (encoded.length() > 0) encoded.append('/');
+				encoded.append(URLEncoder.encode(part, "UTF-8").replace("+", "%20"));
+			}
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+		return encoded.toString();
+	}
+}
@@ -0,0 +1,297 @@
+/**
+* --------------------------------------------------------------------
+* Splits a Gradebook between several markers, so the sorted folder does
+* not have to be divided by hand (which tends to leave one marker with
+* every big video submission).
+*
+* Each student's size and number of files are read from the zip's
+* central directory (see UnzipPlan). Students are then dealt out biggest
+* first, each to the marker with the least work so far, which keeps the
+* shards within one student of each other. Work is counted in bytes, with
+* each file counted as FILE_COST bytes more, since a marker opens every file.
+*
+* Each marker's students are sorted into their own folder inside the
+* sorted folder (eg, 'Gradebook/Alice/c3220929'), with their feedback
+* sheets, and the shards are written at the same time. With --pack each
+* shard is a folder of student zips instead. 'Gradebook.shards.csv' next
+* to the sorted folder lists which marker has each student.
+*
+* With --incremental (eg, after late submissions) students keep the marker
+* they had in 'Gradebook.shards.csv', and only new students are dealt out.
+* --------------------------------------------------------------------
+*/
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class GradebookSharder {
+
+	static final String SHARDS_EXTENSION = ".shards.csv";
+
+	// What each file adds to a student's work, in bytes
+	private static final long FILE_COST = 64 * 1024;
+
+	/**
+	* --------------------------------------------------------------------
+	* One marker's share of the students.
+	* --------------------------------------------------------------------
+	*/
+	static final class Shard {
+		final String marker;
+		final File folder;
+		final List<UnzipPlan.Student> students = new ArrayList<UnzipPlan.Student>();
+		long bytes = 0, work = 0;
+		int files = 0;
+		Roster roster = null;
+
+		Shard(String marker, File folder)
+		{
+			this.marker = marker;
+			this.folder = folder;
+		}
+
+		void add(UnzipPlan.Student student)
+		{
+			students.add(student);
+			bytes += student.bytes;
+			files += student.files;
+			work += work(student);
+		}
+
+		Set<String> studentNos()
+		{
+			LinkedHashSet<String> studentNos = new LinkedHashSet<String>();
+			for (UnzipPlan.Student student : students) studentNos.add(student.studentNo);
+			return studentNos;
+		}
+	}
+
+	private final Options options;
+
+	public GradebookSharder(Options options)
+	{
+		this.options = options;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Splits a Gradebook between the markers and sorts each shard, all at
+	* the same time. Returns false if any shard could not be sorted.
+	* --------------------------------------------------------------------
+	*/
+	public boolean shard(String zipFilePath, String destDir, boolean resume)
+	{
+		UnzipPlan plan;
+		try {
+			plan = UnzipPlan.read(zipFilePath, destDir, options);
+		}
+		catch (IOException e) {
+			Metrics.error();
+			System.out.println("Could not read " + zipFilePath + " ..... " + e.getMessage());
+			return false;
+		}
+		File csv = new File(destDir + SHARDS_EXTENSION);
+		Map<String, String> before = options.incremental ? load(csv) : new HashMap<String, String>();
+		List<Shard> shards = assign(plan.students.values(), markers(options), destDir, before);
+		report(zipFilePath, shards);
+		if (options.dryRun) {
+			plan.print(Metrics.verbosity == Metrics.VERBOSE);
+			return plan.fits();
+		}
+
+		// Each shard is a gradebook job of its own, run at the same time as the others
+		ExecutorService jobs = Executors.newFixedThreadPool(Math.max(1, Math.min(options.jobs, shards.size())));
+		ArrayList<Future<Roster>> results = new ArrayList<Future<Roster>>();
+		for (Shard shard : shards) {
+			Options shardOptions = options.copy();
+			shardOptions.students = shard.studentNos();
+			results.add(shard.students.isEmpty() ? null : jobs.submit(() -> BatchScript.sort(zipFilePath, shard.folder.getPath(), shardOptions, resume)));
+		}
+		jobs.shutdown();
+
+		boolean allSucceeded = true;
+		for (int i = 0; i < shards.size(); i++) {
+			if (results.get(i) == null) continue;
+			try {
+				shards.get(i).roster = results.get(i).get();
+				if (shards.get(i).roster.size() == 0 || !shards.get(i).roster.complete()) allSucceeded = false;
+			}
+			catch (Exception e) {
+				Metrics.error();
+				System.out.println("Could not sort " + shards.get(i).marker + "'s students ..... " + e);
+				allSucceeded = false;
+			}
+		}
+
+		save(csv, shards);
+		return allSucceeded;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Deals the students out, the most work first, each to the shard with
+	* the least work so far (then the fewest files, then the first).
+	* Students in before (student number -> marker) stay with that marker
+	* if they are still marking.
+	* --------------------------------------------------------------------
+	*/
+	static List<Shard> assign(Collection<UnzipPlan.Student> students, String[] markers, String destDir, Map<String, String> before)
+	{
+		ArrayList<Shard> shards = new ArrayList<Shard>(markers.length);
+		HashSet<String> folderNames = new HashSet<String>();
+		for (String marker : markers) {
+			String folderName = folderName(marker);
+			for (int n = 2; !folderNames.add(folderName.toLowerCase()); n++) folderName = folderName(marker) + "-" + n;
+			shards.add(new Shard(marker, new File(destDir, folderName)));
+		}
+
+		ArrayList<UnzipPlan.Student> biggestFirst = new ArrayList<UnzipPlan.Student>(students.size());
+		for (UnzipPlan.Student student : students) {
+			Shard kept = null;
+			for (Shard shard : shards) {
+				if (shard.marker.equals(before.get(student.studentNo))) kept = shard;
+			}
+			if (kept != null) kept.add(student);
+			else biggestFirst.add(student);
+		}
+		biggestFirst.sort((a, b) -> work(a) != work(b) ? Long.compare(work(b), work(a)) : a.studentNo.compareTo(b.studentNo));
+		for (UnzipPlan.Student student : biggestFirst) {
+			Shard least = shards.get(0);
+			for (Shard shard : shards) {
+				if (shard.work < least.work || (shard.work == least.work && shard.files < least.files)) least = shard;
+			}
+			least.add(student);
+		}
+		return shards;
+	}
+
+	private static long work(UnzipPlan.Student student)
+	{
+		return student.bytes + student.files * FILE_COST;
+	}
+
+	// The markers' names, or 'marker1', 'marker2', ... if they were not given
+	private static String[] markers(Options options)
+	{
+		if (options.markers != null) return options.markers;
+		String[] markers = new String[Math.max(1, options.shards)];
+		for (int i = 0; i < markers.length; i++) markers[i] = "marker" + (i + 1);
+		return markers;
+	}
+
+	// A marker's name as a folder name (no slashes or other characters Windows does not allow)
+	private static String folderName(String marker)
+	{
+		String name = marker.trim().replaceAll("[\\\\/:*?\"<>|]", "_");
+		return name.equals("") || name.startsWith(".") ? "_" + name : name;
+	}
+
+	private static void report(String zipFilePath, List<Shard> shards)
+	{
+		long total = 0, biggest = 0;
+		for (Shard shard : shards) {
+			total += shard.bytes;
+			biggest = Math.max(biggest, shard.bytes);
+		}
+		System.out.println(String.format("Splitting %s between %d markers (the biggest share is %.2f times the average):",
+			new File(zipFilePath).getName(), shards.size(), total > 0 ? biggest * shards.size() / (double) total : 1.0));
+		for (Shard shard : shards) {
+			System.out.println(String.format("  %-16s %4d students %6d files %10.1f MB", shard.marker, shard.students.size(), shard.files, shard.bytes / (1024.0 * 1024.0)));
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Saves which marker has each student: student_no, name, marker,
+	* folder, files and bytes, one line per student.
+	* --------------------------------------------------------------------
+	*/
+	// Reads which marker had each student last time (student number -> marker)
+	private static Map<String, String> load(File csv)
+	{
+		HashMap<String, String> markers = new HashMap<String, String>();
+		if (!csv.isFile()) return markers;
+		try (BufferedReader reader = new BufferedReader(new FileReader(csv))) {
+			String line = reader.readLine();
+			while ((line = reader.readLine()) != null) {
+				List<String> fields = fields(line);
+				if (fields.size() >= 3) markers.put(fields.get(0), fields.get(2));
+			}
+		}
+		catch (IOException e) {
+			System.out.println("Could not read " + csv + ", so every student will be dealt out again ..... " + e.getMessage());
+		}
+		return markers;
+	}
+
+	// Splits a line of CSV written by Roster.csv ("" is a quote inside a quoted value)
+	private static List<String> fields(String line)
+	{
+		ArrayList<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c != '"') field.append(c);
+				else if (i + 1 < line.length() && line.charAt(i + 1) == '"') field.append(line.charAt(++i));
+				else quoted = false;
+			}
+			else if (c == '"') {
+				quoted = true;
+			}
+			else if (c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			}
+			else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+
+	private static void save(File csv, List<Shard> shards)
+	{
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(csv))) {
+			writer.write("student_no,name,marker,folder,files,bytes");
+			writer.newLine();
+			for (Shard shard : shards) {
+				for (UnzipPlan.Student student : shard.students) {
+					Roster.Student sorted = shard.roster != null ? shard.roster.get(student.studentNo) : null;
+					String name = "";
+					if (sorted != null) {
+						try {
+							name = Roster.info(sorted).name;
+						}
+						catch (IOException e) {
+							// Left blank
+						}
+					}
+					writer.write(Roster.csv(student.studentNo) + "," + Roster.csv(name) + "," + Roster.csv(shard.marker) + ","
+						+ Roster.csv(shard.folder.getName() + "/" + student.studentNo) + "," + student.files + "," + student.bytes);
+					writer.newLine();
+				}
+			}
+		}
+		catch (IOException e) {
+			System.out.println("Could not save " + csv + " ..... " + e.getMessage());
+		}
+	}
+}
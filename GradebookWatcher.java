@@ -0,0 +1,329 @@
+/**
+* --------------------------------------------------------------------
+* Watch mode: keeps running, watching download folders, and sorts each
+* Gradebook zip as soon as it has finished downloading. Nobody has to
+* remember to run the script or click through the dialogs.
+*
+* A zip is only picked up once its size and time have stopped changing
+* for a few seconds and its central directory can be read (so it is
+* whole). Several gradebooks are sorted at once on a background pool, with
+* the total number of unzip threads capped by '--max-io-threads' (counting
+* every stage's threads with --pipeline).
+*
+* Each gradebook's progress is kept beside it ('Gradebook.status' next to
+* 'Gradebook.zip'): queued, running, done or failed, with the zip's size
+* and time. On start every zip in the folders is checked against its
+* status, so a run that was stopped part way is carried on, and a zip that
+* is done is not sorted again unless it has been downloaded again.
+* --------------------------------------------------------------------
+*/
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class GradebookWatcher {
+
+	static final String STATUS_EXTENSION = ".status";
+
+	enum State { QUEUED, RUNNING, DONE, FAILED }
+
+	// How long a zip's size and time must stay the same before it is treated as downloaded
+	static final long SETTLE_MILLIS = 3000;
+
+	// How often the folders are checked when nothing has happened
+	private static final long POLL_MILLIS = 1000;
+
+	/**
+	* --------------------------------------------------------------------
+	* A zip that has been seen but has not settled yet.
+	* --------------------------------------------------------------------
+	*/
+	private static final class Pending {
+		long size, lastModified, since;
+
+		Pending(File zip, long now)
+		{
+			size = zip.length();
+			lastModified = zip.lastModified();
+			since = now;
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* A gradebook's status file: its state and the zip it was for.
+	* --------------------------------------------------------------------
+	*/
+	static final class Status {
+		final State state;
+		final long size, lastModified;
+
+		Status(State state, long size, long lastModified)
+		{
+			this.state = state;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		boolean isFor(File zip)
+		{
+			return size == zip.length() && lastModified == zip.lastModified();
+		}
+	}
+
+	private final Options options;
+	private final int threadsPerGradebook, gradebooksAtOnce;
+
+	// Zips waiting to settle, and zips being sorted (only touched by the watching thread, and the jobs removing themselves)
+	private final HashMap<File, Pending> pending = new HashMap<File, Pending>();
+	private final Set<File> active = ConcurrentHashMap.newKeySet();
+
+	public GradebookWatcher(Options options)
+	{
+		this.options = options;
+
+		// Each gradebook uses 'threads' unzip threads (1 when sequential), or with --pipeline
+		// its read, inflate and write threads (more writers for a network drive), so that many fit under the cap
+		this.threadsPerGradebook = threadsPerGradebook(options);
+		this.gradebooksAtOnce = Math.max(1, Math.min(options.jobs, options.maxIoThreads / threadsPerGradebook));
+	}
+
+	// Gradebooks are sorted next to their zips, so the pipeline's writers depend on the drives watched
+	private static int threadsPerGradebook(Options options)
+	{
+		if (!options.pipeline) return Math.max(1, options.threads);
+		int most = 1;
+		for (String input : BatchScript.inputs(options)) most = Math.max(most, UnzipPipeline.threads(options, new File(input)));
+		return most;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Watches the folders until the program is stopped.
+	* Returns false if there was nothing to watch.
+	* --------------------------------------------------------------------
+	*/
+	public boolean run()
+	{
+		ArrayList<String> inputs = BatchScript.inputs(options);
+		if (options.template == null || !new File(options.template).isFile()) {
+			System.out.println("No feedback sheet found. Use --template FILE (or 'template=FILE' in the manifest).");
+			return false;
+		}
+
+		ExecutorService jobs = Executors.newFixedThreadPool(gradebooksAtOnce);
+		try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+			HashMap<WatchKey, Path> folders = new HashMap<WatchKey, Path>();
+			for (String input : inputs) {
+				File folder = new File(input);
+				if (!folder.isDirectory()) {
+					System.out.println("Skipping " + input + " ..... not a folder");
+					continue;
+				}
+				Path path = folder.toPath();
+				folders.put(path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY), path);
+
+				// Zips that arrived (or were left part way) while nothing was watching
+				for (File zip : BatchScript.findGradebooks(new ArrayList<String>(Collections.singletonList(input)))) {
+					if (needsSorting(zip)) pending.put(zip, new Pending(zip, 0));
+				}
+			}
+			if (folders.isEmpty()) {
+				System.out.println("No folders to watch in: " + inputs);
+				return false;
+			}
+			System.out.println("Watching " + folders.values() + " for gradebooks, sorting " + gradebooksAtOnce + " at a time. Press Ctrl+C to stop.");
+			if (threadsPerGradebook > options.maxIoThreads) {
+				System.out.println("Each gradebook uses " + threadsPerGradebook + " threads to unzip, more than --max-io-threads " + options.maxIoThreads
+					+ ". Use fewer --threads (or --write-threads) to keep under it.");
+			}
+
+			while (true) {
+				WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (key != null) {
+					Path folder = folders.get(key);
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW || folder == null) continue;
+						File file = folder.resolve((Path) event.context()).toFile();
+						if (file.getName().toLowerCase().endsWith(".zip")) pending.put(file, new Pending(file, System.currentTimeMillis()));
+					}
+					key.reset();
+				}
+				startSettled(jobs);
+			}
+		}
+		catch (IOException e) {
+			System.out.println("Could not watch the folders ..... " + e.getMessage());
+			return false;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return true;
+		}
+		finally {
+			jobs.shutdown();
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Starts sorting every pending zip that has stopped changing.
+	* --------------------------------------------------------------------
+	*/
+	private void startSettled(ExecutorService jobs)
+	{
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<File, Pending>> it = pending.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<File, Pending> entry = it.next();
+			File zip = entry.getKey();
+			Pending p = entry.getValue();
+
+			if (!zip.isFile()) {
+				it.remove();
+				continue;
+			}
+			if (zip.length() != p.size || zip.lastModified() != p.lastModified) {
+				p.size = zip.length();
+				p.lastModified = zip.lastModified();
+				p.since = now;
+				continue;
+			}
+			// Still downloading, being sorted already, or not a whole zip yet
+			if (now - p.since < SETTLE_MILLIS || active.contains(zip) || !isWholeZip(zip)) continue;
+
+			it.remove();
+			if (!needsSorting(zip)) continue;
+
+			// Queued or running means the last run stopped part way through this zip
+			Status last = loadStatus(zip);
+			boolean resume = last != null && last.isFor(zip) && last.state != State.DONE;
+			active.add(zip);
+			saveStatus(zip, State.QUEUED);
+			jobs.execute(() -> sort(zip, resume));
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Sorts one gradebook and records how it went. Runs on the job pool.
+	* A gradebook that has been sorted before is unzipped incrementally, so
+	* what is already there is kept. One that was stopped part way the first
+	* time it was sorted (so there is no manifest yet) carries on from its
+	* journal instead, as a half-written file would pass for an old one.
+	* --------------------------------------------------------------------
+	*/
+	private void sort(File zip, boolean resume)
+	{
+		try {
+			Options run = options.copy();
+			String destDir = Script.unzipDestination(zip.getPath());
+			run.incremental = new File(destDir).isDirectory() && !(resume && !IncrementalSync.manifestFile(destDir).isFile());
+
+			saveStatus(zip, State.RUNNING);
+			System.out.println((resume ? "Carrying on with " : "Sorting ") + zip);
+			boolean sorted = BatchScript.process(zip, run, resume);
+			saveStatus(zip, sorted ? State.DONE : State.FAILED);
+		}
+		catch (RuntimeException e) {
+			System.out.println("Could not sort " + zip + " ..... " + e);
+			Metrics.error();
+			saveStatus(zip, State.FAILED);
+		}
+		finally {
+			active.remove(zip);
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Whether a zip still has to be sorted: it has never been, it was stopped
+	* part way, or it has changed (been downloaded again) since.
+	* A zip that failed is not tried again until it changes.
+	* --------------------------------------------------------------------
+	*/
+	static boolean needsSorting(File zip)
+	{
+		Status status = loadStatus(zip);
+		if (status == null || !status.isFor(zip)) return true;
+		return status.state == State.QUEUED || status.state == State.RUNNING;
+	}
+
+	// A zip is whole once its central directory can be read
+	private static boolean isWholeZip(File zip)
+	{
+		try {
+			new ZipIndex(zip).close();
+			return true;
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	static File statusFile(File zip)
+	{
+		return new File(Script.unzipDestination(zip.getPath()) + STATUS_EXTENSION);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Reads a gradebook's status. Returns null if it has none (or it cannot be read).
+	* The file is one line: state, zip size, zip time (separated by tabs).
+	* --------------------------------------------------------------------
+	*/
+	static Status loadStatus(File zip)
+	{
+		File file = statusFile(zip);
+		if (!file.isFile()) return null;
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String[] fields = reader.readLine().split("\t");
+			return new Status(State.valueOf(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+		}
+		catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Saves a gradebook's status, through a temporary file so it is never half written.
+	* --------------------------------------------------------------------
+	*/
+	static void saveStatus(File zip, State state)
+	{
+		File file = statusFile(zip);
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			try (Writer writer = new FileWriter(temp)) {
+				writer.write(state + "\t" + zip.length() + "\t" + zip.lastModified() + "\t" + System.currentTimeMillis() + "\n");
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException e) {
+			System.out.println("Could not save " + file + " ..... " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,241 @@
+/**
+* --------------------------------------------------------------------
+* Re-syncs a Gradebook that has been downloaded again (eg, after late
+* submissions) into a folder that has already been sorted.
+*
+* A manifest is kept beside the sorted folder ('Gradebook.manifest' next
+* to 'Gradebook') with each entry's name, size, CRC32 and time, as read
+* from the zip's central directory. On the next run only new or changed
+* entries are unzipped, and feedback sheets only go into new students' folders
+* (the ones the roster had to make).
+*
+* A file that a tutor has changed since it was unzipped is never overwritten.
+* The new version is saved next to it as 'name (resubmitted).ext' instead.
+* --------------------------------------------------------------------
+*/
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class IncrementalSync {
+
+	static final String MANIFEST_EXTENSION = ".manifest";
+
+	/**
+	* --------------------------------------------------------------------
+	* One line of the manifest. 'written' is the time the file was last
+	* modified right after it was unzipped, so edits by a tutor can be spotted.
+	* --------------------------------------------------------------------
+	*/
+	static class Record {
+		final String name;
+		final long size, crc, time, written;
+
+		Record(String name, long size, long crc, long time, long written)
+		{
+			this.name = name;
+			this.size = size;
+			this.crc = crc;
+			this.time = time;
+			this.written = written;
+		}
+
+		Record(ZipIndex.Entry ze, long written)
+		{
+			this(ze.name, ze.size, ze.crc, ze.time(), written);
+		}
+
+		boolean sameAs(ZipIndex.Entry ze)
+		{
+			return size == ze.size && crc == ze.crc;
+		}
+
+		String toLine()
+		{
+			return name + "\t" + size + "\t" + Long.toHexString(crc) + "\t" + time + "\t" + written;
+		}
+
+		static Record fromLine(String line)
+		{
+			String[] fields = line.split("\t");
+			return new Record(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2], 16),
+				Long.parseLong(fields[3]), Long.parseLong(fields[4]));
+		}
+	}
+
+	private final File manifestFile;
+
+	// What the last run unzipped, and what this run has (entries not in this zip are kept)
+	private final Map<String, Record> previous;
+	private final ConcurrentHashMap<String, Record> current = new ConcurrentHashMap<String, Record>();
+
+	// Counts for the summary
+	private int unchanged = 0, keptEdited = 0;
+	private final AtomicInteger unzipped = new AtomicInteger();
+
+	public IncrementalSync(String destDir)
+	{
+		manifestFile = manifestFile(destDir);
+		previous = load(manifestFile);
+		current.putAll(previous);
+	}
+
+	static File manifestFile(String destDir)
+	{
+		return new File(destDir + MANIFEST_EXTENSION);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Unzips only what is new or changed, saves the manifest, and returns
+	* the roster. Students new since the last run are marked as new in it.
+	* --------------------------------------------------------------------
+	*/
+	static Roster unzip(String zipFilePath, String destDir, Options options)
+	{
+		// Who was there last time, from the saved roster rather than the folders
+		Roster before = Roster.load(destDir);
+		IncrementalSync sync = new IncrementalSync(destDir);
+		Roster roster = new ParallelUnzip(options, sync).unzip(zipFilePath, destDir);
+		sync.save();
+
+		System.out.println(String.format("Incremental sync: %d unchanged, %d unzipped, %d kept (marked) with the new version saved beside them, %d new students",
+			sync.unchanged, sync.unzipped.get(), sync.keptEdited, roster.newFolders().size()));
+		if (before != null && options.students == null) {
+			ArrayList<String> gone = new ArrayList<String>();
+			for (Roster.Student student : before.students()) {
+				if (roster.get(student.studentNo) == null) gone.add(student.studentNo);
+			}
+			if (!gone.isEmpty()) System.out.println(gone.size() + " students sorted last time are no longer in the Gradebook (their folders were kept): " + gone);
+		}
+		return roster;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Decides where an entry should be unzipped to, or returns null to skip it.
+	* target: where it would normally go (the attempt folder for a student zip)
+	* Called by the unzip, on the thread reading the Gradebook.
+	* --------------------------------------------------------------------
+	*/
+	File target(ZipIndex.Entry ze, File target, boolean nested)
+	{
+		Record last = previous.get(ze.name);
+		if (last != null && last.sameAs(ze)) {
+			unchanged++;
+			return null;
+		}
+		if (!target.exists()) return target;
+
+		// Sorted before there was a manifest. Assume it is the same if the size matches.
+		if (last == null && (nested || target.length() == ze.size)) {
+			current.put(ze.name, new Record(ze, target.lastModified()));
+			unchanged++;
+			return null;
+		}
+
+		// Changed in the zip, but nobody has touched our copy, so it can be replaced
+		if (!nested && last != null && target.lastModified() == last.written) return target;
+
+		keptEdited++;
+		return resubmitted(target);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Records that an entry has been unzipped. Called from the worker threads.
+	* --------------------------------------------------------------------
+	*/
+	void written(ZipIndex.Entry ze, File file)
+	{
+		current.put(ze.name, new Record(ze, file.lastModified()));
+		unzipped.incrementAndGet();
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Gets a free name beside a file for its resubmitted version, eg,
+	* 'c3220929_Store.java' -> 'c3220929_Store (resubmitted).java'
+	* --------------------------------------------------------------------
+	*/
+	static File resubmitted(File file)
+	{
+		String name = file.getName();
+		int dot = file.isDirectory() ? -1 : name.lastIndexOf('.');
+		String base = dot > 0 ? name.substring(0, dot) : name;
+		String extension = dot > 0 ? name.substring(dot) : "";
+
+		File candidate = new File(file.getParentFile(), base + " (resubmitted)" + extension);
+		for (int i = 2; candidate.exists(); i++) {
+			candidate = new File(file.getParentFile(), base + " (resubmitted " + i + ")" + extension);
+		}
+		return candidate;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Reads the manifest from the last run. Returns an empty map if there is none.
+	* --------------------------------------------------------------------
+	*/
+	private static Map<String, Record> load(File manifestFile)
+	{
+		HashMap<String, Record> records = new HashMap<String, Record>();
+		if (!manifestFile.exists()) return records;
+
+		try (BufferedReader reader = new BufferedReader(new FileReader(manifestFile))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.equals("") || line.startsWith("#")) continue;
+				Record record = Record.fromLine(line);
+				records.put(record.name, record);
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			System.out.println("Could not read " + manifestFile + ", so everything will be checked again ..... " + e.getMessage());
+			records.clear();
+		}
+		return records;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Writes the manifest. It is written to a temporary file first and then
+	* moved over the old one, so a crash never leaves half a manifest.
+	* --------------------------------------------------------------------
+	*/
+	void save()
+	{
+		File temp = new File(manifestFile.getPath() + ".tmp");
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(temp))) {
+			writer.write("# name\tsize\tcrc32\ttime\twritten");
+			writer.newLine();
+			for (Record record : new TreeMap<String, Record>(current).values()) {
+				writer.write(record.toLine());
+				writer.newLine();
+			}
+		}
+		catch (IOException e) {
+			System.out.println("Could not save " + manifestFile + " ..... " + e.getMessage());
+			return;
+		}
+
+		try {
+			Files.move(temp.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException e) {
+			System.out.println("Could not save " + manifestFile + " ..... " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,266 @@
+/**
+* --------------------------------------------------------------------
+* Counts what a run has done (entries, bytes, students and errors), times
+* each phase (unzip, nested unzip, feedback sheets, compiling and testing) and keeps a histogram
+* of how long each entry took to write.
+*
+* Instead of a line for every file, a progress bar is drawn from these
+* counts on its own thread, a few times a second, so printing never slows
+* the unzip down. '--verbose' brings back the line for every file and
+* '--quiet' turns the progress bar off. '--metrics FILE' saves everything
+* as JSON at the end of the run.
+*
+* The counters are shared by every thread (and every gradebook in batch mode).
+* --------------------------------------------------------------------
+*/
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Metrics {
+
+	enum Phase { UNZIP, NESTED, FEEDBACK, COMPILE, TEST }
+
+	// How much is printed: QUIET (no progress bar), NORMAL (progress bar) or VERBOSE (a line for every file)
+	static final int QUIET = 0, NORMAL = 1, VERBOSE = 2;
+	static volatile int verbosity = NORMAL;
+
+	// How often the progress bar is redrawn, and how often a plain line is printed when there is no console
+	private static final long REDRAW_MILLIS = 200, LOG_MILLIS = 5000;
+	private static final int BAR_WIDTH = 30;
+
+	static final LongAdder entries = new LongAdder(), bytes = new LongAdder();
+	static final LongAdder students = new LongAdder(), errors = new LongAdder();
+
+	// Entries the progress bar expects (0 when the zip is read as a stream and the count is not known)
+	static final AtomicLong expectedEntries = new AtomicLong();
+
+	// Per phase: how many times it ran, the time summed over every run, and when it first started and last ended
+	private static final int PHASES = Phase.values().length;
+	private static final LongAdder[] phaseCount = new LongAdder[PHASES], phaseNanos = new LongAdder[PHASES];
+	private static final AtomicLong[] phaseFirst = new AtomicLong[PHASES], phaseLast = new AtomicLong[PHASES];
+
+	// Bucket i counts entries that took from 2^i to 2^(i+1) microseconds to write (bucket 0 also has anything faster)
+	private static final AtomicLongArray latency = new AtomicLongArray(40);
+	private static final AtomicLong maxLatencyMicros = new AtomicLong();
+
+	private static final long runStart = System.nanoTime();
+	private static Thread progress = null;
+
+	static {
+		for (int p = 0; p < PHASES; p++) {
+			phaseCount[p] = new LongAdder();
+			phaseNanos[p] = new LongAdder();
+			phaseFirst[p] = new AtomicLong(Long.MAX_VALUE);
+			phaseLast[p] = new AtomicLong(Long.MIN_VALUE);
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Counts one entry written, and how long it took.
+	* startNanos: System.nanoTime() from when the entry was started
+	* --------------------------------------------------------------------
+	*/
+	static void entry(long entryBytes, long startNanos)
+	{
+		entries.increment();
+		bytes.add(entryBytes);
+
+		long micros = Math.max(0, (System.nanoTime() - startNanos) / 1000);
+		latency.incrementAndGet(Math.min(63 - Long.numberOfLeadingZeros(Math.max(micros, 1)), latency.length() - 1));
+		maxLatencyMicros.accumulateAndGet(micros, Math::max);
+	}
+
+	static void student()
+	{
+		students.increment();
+	}
+
+	static void error()
+	{
+		errors.increment();
+	}
+
+	static void expect(long moreEntries)
+	{
+		expectedEntries.addAndGet(moreEntries);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Records one run of a phase.
+	* startNanos: System.nanoTime() from when it started
+	* --------------------------------------------------------------------
+	*/
+	static void phase(Phase phase, long startNanos)
+	{
+		long end = System.nanoTime();
+		int p = phase.ordinal();
+		phaseCount[p].increment();
+		phaseNanos[p].add(end - startNanos);
+		phaseFirst[p].accumulateAndGet(startNanos, Math::min);
+		phaseLast[p].accumulateAndGet(end, Math::max);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Prints a line about one file. Only shown with '--verbose'.
+	* --------------------------------------------------------------------
+	*/
+	static void verbose(String message)
+	{
+		if (verbosity >= VERBOSE) System.out.println(message);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Starts drawing the progress bar (once, however many times it is called).
+	* It is drawn over itself on a console, or printed as a line every few
+	* seconds when the output is going to a file or CI log.
+	* It goes to System.err so it is never mixed into the output itself.
+	* --------------------------------------------------------------------
+	*/
+	static synchronized void startProgress()
+	{
+		if (progress != null || verbosity != NORMAL) return;
+
+		boolean console = System.console() != null;
+		progress = new Thread(() -> {
+			String last = "";
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					Thread.sleep(console ? REDRAW_MILLIS : LOG_MILLIS);
+					String line = progressLine();
+					if (line.equals(last)) continue;
+					last = line;
+					if (console) System.err.print("\r" + line);
+					else System.err.println(line);
+				}
+			}
+			catch (InterruptedException e) {
+				// Stopped
+			}
+		}, "progress");
+		progress.setDaemon(true);
+		progress.start();
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Stops the progress bar and leaves the final counts on the console.
+	* --------------------------------------------------------------------
+	*/
+	static synchronized void stopProgress()
+	{
+		if (progress == null) return;
+		progress.interrupt();
+		try {
+			progress.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		progress = null;
+
+		System.err.println((System.console() != null ? "\r" : "") + progressLine());
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Gets the progress bar, eg,
+	* [##########--------------------]  1520/4560 entries, 210.3 MB, 120 students, 0 errors
+	* --------------------------------------------------------------------
+	*/
+	static String progressLine()
+	{
+		long done = entries.sum(), expected = expectedEntries.get();
+		StringBuilder line = new StringBuilder();
+		if (expected > 0) {
+			int filled = (int) Math.min(BAR_WIDTH, done * BAR_WIDTH / expected);
+			line.append('[');
+			for (int i = 0; i < BAR_WIDTH; i++) line.append(i < filled ? '#' : '-');
+			line.append("] ").append(done).append('/').append(expected).append(" entries");
+		}
+		else {
+			line.append(done).append(" entries");
+		}
+		line.append(String.format(Locale.ROOT, ", %.1f MB, %d students, %d errors",
+			bytes.sum() / (1024.0 * 1024), students.sum(), errors.sum()));
+		return line.toString();
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Saves the counts, phase times and latency histogram as JSON.
+	* --------------------------------------------------------------------
+	*/
+	static void save(String jsonFile)
+	{
+		try (Writer writer = new FileWriter(new File(jsonFile))) {
+			writer.write(json());
+		}
+		catch (IOException e) {
+			System.out.println("Could not save the metrics to " + jsonFile + " ..... " + e.getMessage());
+		}
+	}
+
+	static String json()
+	{
+		StringBuilder json = new StringBuilder("{\n");
+		json.append(String.format(Locale.ROOT, "  \"seconds\": %.3f,\n", (System.nanoTime() - runStart) / 1e9));
+		json.append("  \"entries\": ").append(entries.sum()).append(",\n");
+		json.append("  \"bytes\": ").append(bytes.sum()).append(",\n");
+		json.append("  \"students\": ").append(students.sum()).append(",\n");
+		json.append("  \"errors\": ").append(errors.sum()).append(",\n");
+
+		// Seconds is summed over every run of the phase (so over every thread); wallSeconds is first start to last end
+		json.append("  \"phases\": {");
+		for (Phase phase : Phase.values()) {
+			int p = phase.ordinal();
+			long count = phaseCount[p].sum();
+			json.append(p > 0 ? "," : "").append("\n    \"").append(phase.name().toLowerCase(Locale.ROOT)).append("\": ");
+			json.append(String.format(Locale.ROOT, "{ \"count\": %d, \"seconds\": %.3f, \"wallSeconds\": %.3f }",
+				count, phaseNanos[p].sum() / 1e9, count > 0 ? (phaseLast[p].get() - phaseFirst[p].get()) / 1e9 : 0.0));
+		}
+		json.append("\n  },\n");
+
+		// Percentiles are the top of the bucket they fall in
+		json.append("  \"entryLatencyMicros\": {\n");
+		json.append("    \"p50\": ").append(percentile(0.50)).append(",\n");
+		json.append("    \"p90\": ").append(percentile(0.90)).append(",\n");
+		json.append("    \"p99\": ").append(percentile(0.99)).append(",\n");
+		json.append("    \"max\": ").append(maxLatencyMicros.get()).append(",\n");
+		json.append("    \"buckets\": [");
+		boolean first = true;
+		for (int i = 0; i < latency.length(); i++) {
+			long count = latency.get(i);
+			if (count == 0) continue;
+			json.append(first ? "\n" : ",\n").append("      { \"lessThan\": ").append(1L << (i + 1)).append(", \"count\": ").append(count).append(" }");
+			first = false;
+		}
+		json.append(first ? "]\n" : "\n    ]\n");
+		json.append("  }\n}\n");
+		return json.toString();
+	}
+
+	private static long percentile(double fraction)
+	{
+		long total = 0;
+		for (int i = 0; i < latency.length(); i++) total += latency.get(i);
+		if (total == 0) return 0;
+
+		long seen = 0;
+		for (int i = 0; i < latency.length(); i++) {
+			seen += latency.get(i);
+			if (seen >= Math.ceil(total * fraction)) return 1L << (i + 1);
+		}
+		return maxLatencyMicros.get();
+	}
+}
@@ -0,0 +1,258 @@
+/**
+* --------------------------------------------------------------------
+* Reads the student number and original file name out of a zip entry name,
+* for the bulk downloads of different learning management systems:
+* 		- Blackboard: 'Gradebook/Assignment1_c3220929_CoverSheet.docx'
+*		- Moodle:     'Jessica Javon_123456_assignsubmission_file_Store.java'
+*		              (or '..._assignsubmission_file_/Store.java' in newer versions)
+*		- Canvas:     'javonjessica_123456_7890123_Store.java' (or 'javonjessica_LATE_123456_...')
+*
+* The parsers scan the name once, by hand, and only record where the student
+* number and file name start and end, so no Strings are made while parsing.
+* Each parser is a single shared instance.
+*
+* Names that do not match the scheme are sorted into an 'unsorted' folder.
+* --------------------------------------------------------------------
+*/
+
+import java.util.Locale;
+
+public abstract class NamingScheme {
+
+	/**
+	* --------------------------------------------------------------------
+	* Where the parts of one entry name are. Reused for every entry, so
+	* parsing a name does not allocate anything.
+	* --------------------------------------------------------------------
+	*/
+	static final class ParsedName {
+		String name;
+		int idStart, idEnd, fileStart;
+
+		// False if the name did not match the scheme
+		boolean matched;
+
+		/**
+		* Gets the student number, eg, 'c3220929'.
+		*/
+		String studentNo()
+		{
+			return matched ? name.substring(idStart, idEnd) : UNSORTED;
+		}
+
+		/**
+		* Whether the student number is the same as the given one. Does not allocate.
+		*/
+		boolean studentNoEquals(String studentNo)
+		{
+			if (!matched) return studentNo.equals(UNSORTED);
+			return studentNo.length() == idEnd - idStart && name.regionMatches(idStart, studentNo, 0, idEnd - idStart);
+		}
+
+		/**
+		* Gets the original file name, eg, 'CoverSheet.docx'.
+		*/
+		String originalFileName()
+		{
+			return name.substring(fileStart);
+		}
+
+		/**
+		* Gets the name the file is saved as in the student's folder, eg,
+		* 'c3220929_CoverSheet.docx'. For Blackboard this is just the end of the entry name.
+		*/
+		String sortedFileName()
+		{
+			if (!matched) return name.substring(fileStart);
+			if (fileStart == idEnd + 1) return name.substring(idStart);
+			return new StringBuilder(idEnd - idStart + 1 + name.length() - fileStart)
+				.append(name, idStart, idEnd).append('_').append(name, fileStart, name.length()).toString();
+		}
+	}
+
+	// Folder for entries whose names do not match the scheme
+	static final String UNSORTED = "unsorted";
+
+	public static final NamingScheme BLACKBOARD = new Blackboard();
+	public static final NamingScheme MOODLE = new Moodle();
+	public static final NamingScheme CANVAS = new Canvas();
+
+	// The order they are tried in when the scheme is not given. Most specific first.
+	private static final NamingScheme[] ALL = { MOODLE, CANVAS, BLACKBOARD };
+
+	private final String schemeName;
+
+	NamingScheme(String schemeName)
+	{
+		this.schemeName = schemeName;
+	}
+
+	String schemeName()
+	{
+		return schemeName;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Finds the parts of an entry name. Returns false if the name is not
+	* in this scheme's format.
+	* --------------------------------------------------------------------
+	*/
+	abstract boolean parse(String name, ParsedName out);
+
+	/**
+	* --------------------------------------------------------------------
+	* Parses an entry name. If it does not match, it is marked to go into
+	* the 'unsorted' folder under its own name (without any folders).
+	* --------------------------------------------------------------------
+	*/
+	final ParsedName read(String name, ParsedName out)
+	{
+		out.matched = parse(name, out);
+		if (!out.matched) {
+			out.name = name;
+			out.fileStart = baseStart(name);
+		}
+		return out;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Gets a scheme from its name on the command line, eg, 'moodle'.
+	* Returns null if there is no such scheme.
+	* --------------------------------------------------------------------
+	*/
+	static NamingScheme forName(String name)
+	{
+		for (NamingScheme scheme : ALL) {
+			if (scheme.schemeName.equals(name.toLowerCase(Locale.ROOT))) return scheme;
+		}
+		return null;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Works out the scheme from a file entry's name (not a folder's, which
+	* has no file name to tell it by). Falls back to Blackboard, which is
+	* what the script has always expected.
+	* --------------------------------------------------------------------
+	*/
+	static NamingScheme detect(String name)
+	{
+		ParsedName parsed = new ParsedName();
+		for (NamingScheme scheme : ALL) {
+			if (scheme.parse(name, parsed)) return scheme;
+		}
+		return BLACKBOARD;
+	}
+
+	// Start of the name without any folders, eg, 'Gradebook/'
+	static int baseStart(String name)
+	{
+		return name.lastIndexOf('/') + 1;
+	}
+
+	// Index just past a run of digits starting at i
+	static int skipDigits(String name, int i)
+	{
+		while (i < name.length() && name.charAt(i) >= '0' && name.charAt(i) <= '9') i++;
+		return i;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Blackboard: '<assignment>_<username>_<file>'. The username is the first
+	* '_c' followed by digits and '_', so an assignment called, eg,
+	* 'Lab_calc' is not mistaken for a student.
+	* --------------------------------------------------------------------
+	*/
+	private static final class Blackboard extends NamingScheme {
+		Blackboard() { super("blackboard"); }
+
+		@Override
+		boolean parse(String name, ParsedName out)
+		{
+			int i = name.indexOf("_c", baseStart(name));
+			while (i >= 0) {
+				int digitsEnd = skipDigits(name, i + 2);
+				if (digitsEnd > i + 2 && digitsEnd < name.length() && name.charAt(digitsEnd) == '_') {
+					out.name = name;
+					out.idStart = i + 1;
+					out.idEnd = digitsEnd;
+					out.fileStart = digitsEnd + 1;
+					return true;
+				}
+				i = name.indexOf("_c", i + 1);
+			}
+			return false;
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Moodle: '<full name>_<participant id>_assignsubmission_<plugin>_<file>'.
+	* Newer versions put the file in a folder: '..._<plugin>_/<file>'.
+	* --------------------------------------------------------------------
+	*/
+	private static final class Moodle extends NamingScheme {
+		private static final String MARKER = "_assignsubmission_";
+
+		Moodle() { super("moodle"); }
+
+		@Override
+		boolean parse(String name, ParsedName out)
+		{
+			int marker = name.indexOf(MARKER);
+			if (marker <= 0) return false;
+
+			// The participant id is the digits just before the marker
+			int idStart = marker;
+			while (idStart > 0 && name.charAt(idStart - 1) >= '0' && name.charAt(idStart - 1) <= '9') idStart--;
+			if (idStart == marker || idStart == 0 || name.charAt(idStart - 1) != '_') return false;
+
+			// Skips the plugin name, eg, 'file_' or 'onlinetext_', and the folder slash
+			int pluginEnd = name.indexOf('_', marker + MARKER.length());
+			if (pluginEnd < 0) return false;
+			int fileStart = pluginEnd + 1;
+			if (fileStart < name.length() && name.charAt(fileStart) == '/') fileStart++;
+			if (fileStart >= name.length()) return false;
+
+			out.name = name;
+			out.idStart = idStart;
+			out.idEnd = marker;
+			out.fileStart = fileStart;
+			return true;
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Canvas: '<lastfirst>_[LATE_]<user id>_<submission id>_<file>'.
+	* --------------------------------------------------------------------
+	*/
+	private static final class Canvas extends NamingScheme {
+		Canvas() { super("canvas"); }
+
+		@Override
+		boolean parse(String name, ParsedName out)
+		{
+			int i = name.indexOf('_', baseStart(name));
+			if (i <= 0) return false;
+			i++;
+			if (name.regionMatches(true, i, "late_", 0, 5)) i += 5;
+
+			int idStart = i;
+			int idEnd = skipDigits(name, idStart);
+			if (idEnd == idStart || idEnd >= name.length() || name.charAt(idEnd) != '_') return false;
+
+			int submissionEnd = skipDigits(name, idEnd + 1);
+			if (submissionEnd == idEnd + 1 || submissionEnd + 1 >= name.length() || name.charAt(submissionEnd) != '_') return false;
+
+			out.name = name;
+			out.idStart = idStart;
+			out.idEnd = idEnd;
+			out.fileStart = submissionEnd + 1;
+			return true;
+		}
+	}
+}
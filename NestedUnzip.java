@@ -0,0 +1,285 @@
+/**
+* --------------------------------------------------------------------
+* Opens a student's own archive (a zip, tar, tar.gz, tgz or gz) straight
+* into their 'attempt' folder.
+* The archive is read from the Gradebook stream as it is inflated, so it
+* is never written to disk and read back again (as archive/Original.java did).
+* Archives inside the student's archive are opened too, up to a maximum depth.
+*
+* Files are picked out to be opened by their names (see isNestedZip), but
+* what they are is told from their first bytes (see ArchiveFormat). A file
+* that turns out not to be an archive the script can open (eg, a RAR, or a
+* '.zip' that is not a zip at all) is saved as it is and noted on the
+* student, and they are all listed in 'unopened.csv' in the sorted folder.
+* --------------------------------------------------------------------
+*/
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+public class NestedUnzip {
+
+	// Name of the folder a student's zip is unzipped into, as in archive/Original.java
+	static final String ATTEMPT_FOLDER = "attempt";
+
+	// Names of files that are opened as archives. Longest first, so 'x.tar.gz' loses all of '.tar.gz'.
+	private static final String[] ARCHIVE_EXTENSIONS = { ".tar.gz", ".tar.bz2", ".tar.xz", ".zip", ".tar", ".tgz", ".gz", ".7z", ".rar", ".bz2", ".tbz2", ".xz", ".txz" };
+
+	/**
+	* --------------------------------------------------------------------
+	* What an archive is being opened for: how deep it is (the student's
+	* own archive is 1), how deep archives are opened, and who it belongs to.
+	* Used by one thread at a time.
+	* --------------------------------------------------------------------
+	*/
+	static final class Context {
+		final int depth, maxDepth;
+		final DuplicateIndex duplicates;
+		final Roster.Student student;
+		final byte[] buffer;
+
+		Context(int depth, int maxDepth, DuplicateIndex duplicates, Roster.Student student, byte[] buffer)
+		{
+			this.depth = depth;
+			this.maxDepth = maxDepth;
+			this.duplicates = duplicates;
+			this.student = student;
+			this.buffer = buffer;
+		}
+
+		// For an archive inside this one
+		Context deeper()
+		{
+			return new Context(depth + 1, maxDepth, duplicates, student, buffer);
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* A stream whose first bytes have been read to tell what it is.
+	* 'in' still gives the whole stream, and closing it leaves the stream
+	* it was opened on open.
+	* --------------------------------------------------------------------
+	*/
+	static final class Archive {
+		final ArchiveFormat format;
+		final InputStream in;
+
+		Archive(ArchiveFormat format, InputStream in)
+		{
+			this.format = format;
+			this.in = in;
+		}
+
+		boolean canExtract()
+		{
+			return format != null && format.canExtract();
+		}
+
+		// Why it cannot be opened
+		String reason()
+		{
+			return format == null ? "it is not an archive" : format.formatName() + " archives cannot be opened by the script";
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Whether a sorted file should be opened rather than written out as it is.
+	* --------------------------------------------------------------------
+	*/
+	static boolean isNestedZip(String fileName, int maxDepth)
+	{
+		return maxDepth > 0 && archiveExtension(fileName) != null;
+	}
+
+	// 'Store.tar.gz' -> '.tar.gz', or null if it is not named as an archive
+	private static String archiveExtension(String fileName)
+	{
+		String lower = fileName.toLowerCase();
+		for (String extension : ARCHIVE_EXTENSIONS) {
+			if (lower.endsWith(extension) && lower.length() > extension.length()) return extension;
+		}
+		return null;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Gets an archive's name without its archive extension, which is the
+	* name of the folder it is opened into (or of the file in a gzip),
+	* eg, 'Store.tar.gz' -> 'Store', 'report.pdf.gz' -> 'report.pdf'
+	* --------------------------------------------------------------------
+	*/
+	static String baseName(String fileName)
+	{
+		String name = fileName.substring(fileName.lastIndexOf('/') + 1);
+		String extension = archiveExtension(name);
+		return extension != null ? name.substring(0, name.length() - extension.length()) : name + ".unpacked";
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Reads the first bytes of a stream to tell what it is.
+	* --------------------------------------------------------------------
+	*/
+	static Archive open(InputStream in) throws IOException
+	{
+		PushbackInputStream pushback = new PushbackInputStream(new FilterInputStream(in) {
+			// Closing the inner archive must not close the Gradebook
+			@Override
+			public void close() {}
+		}, ArchiveFormat.HEAD_SIZE);
+
+		byte[] head = new byte[ArchiveFormat.HEAD_SIZE];
+		int length = 0, len;
+		while (length < head.length && (len = pushback.read(head, length, head.length - length)) > 0) length += len;
+		pushback.unread(head, 0, length);
+		return new Archive(ArchiveFormat.detect(head, length), pushback);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Unzips the zip being read from 'in' into destDir. 'in' is left open so
+	* the caller can carry on reading the Gradebook after it.
+	* depth: how deep this zip is (the student's own zip is 1)
+	* Returns the number of bytes written.
+	* --------------------------------------------------------------------
+	*/
+	static long extract(InputStream in, File destDir, int depth, int maxDepth) throws IOException
+	{
+		return extract(in, destDir, depth, maxDepth, null, null);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* duplicates: hashes each file for the student as it is written (null to not)
+	* --------------------------------------------------------------------
+	*/
+	static long extract(InputStream in, File destDir, int depth, int maxDepth, DuplicateIndex duplicates, Roster.Student student) throws IOException
+	{
+		Context context = new Context(depth, maxDepth, duplicates, student, new byte[ParallelUnzip.BUFFER_SIZE]);
+		return extractZip(open(in).in, destDir, context);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Opens an archive (whatever its format) into destDir. name is the
+	* archive's own name. Returns the number of bytes written.
+	* --------------------------------------------------------------------
+	*/
+	static long extract(Archive archive, String name, File destDir, int maxDepth, DuplicateIndex duplicates, Roster.Student student) throws IOException
+	{
+		Context context = new Context(1, maxDepth, duplicates, student, new byte[ParallelUnzip.BUFFER_SIZE]);
+		return archive.format.extract(archive.in, name, destDir, context);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Streams a zip into destDir. 'in' must be a stream from open().
+	* A file name that is not UTF-8 (eg, from an old Windows zip tool that
+	* writes them in CP437) cannot be read from a stream, and is thrown as
+	* a ZipException, so the zip is noted as unopened like any bad zip.
+	* --------------------------------------------------------------------
+	*/
+	static long extractZip(InputStream in, File destDir, Context context) throws IOException
+	{
+		long bytesWritten = 0;
+		String destPath = destDir.getCanonicalPath() + File.separator;
+
+		try (ZipInputStream zis = new ZipInputStream(in)) {
+			ZipEntry entry;
+			while ((entry = zis.getNextEntry()) != null) {
+				if (entry.isDirectory()) {
+					if (isInside(new File(destDir, entry.getName()), destPath, destDir)) new File(destDir, entry.getName()).mkdirs();
+				}
+				else {
+					bytesWritten += extractEntry(zis, entry.getName(), destDir, destPath, context);
+				}
+				zis.closeEntry();
+			}
+		}
+		catch (IllegalArgumentException e) {
+			throw new ZipException("it has a file name that is not UTF-8 (" + e.getMessage() + ")");
+		}
+		return bytesWritten;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Writes one file from an archive (zip or tar) into destDir, or opens
+	* it into a folder of the same name if it is an archive itself.
+	* --------------------------------------------------------------------
+	*/
+	static long extractEntry(InputStream in, String entryName, File destDir, String destPath, Context context) throws IOException
+	{
+		File newFile = new File(destDir, entryName);
+
+		// Skip entries that would be written outside the attempt folder, eg, '../../file'
+		if (!isInside(newFile, destPath, destDir)) return 0;
+
+		if (context.depth < context.maxDepth && isNestedZip(entryName, context.maxDepth)) {
+			// An archive inside the student's archive is opened next to it, into a folder of the same name
+			Archive archive = open(in);
+			if (archive.canExtract()) {
+				return archive.format.extract(archive.in, newFile.getName(), new File(newFile.getParentFile(), baseName(newFile.getName())), context.deeper());
+			}
+			unopened(context.student, relativePath(context.student, newFile), archive.reason());
+			in = archive.in;
+		}
+		return write(in, newFile, context);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Writes a file from an archive, hashing it for the duplicate check.
+	* --------------------------------------------------------------------
+	*/
+	static long write(InputStream in, File newFile, Context context) throws IOException
+	{
+		long bytesWritten = 0;
+		newFile.getParentFile().mkdirs();
+		DuplicateIndex.Hasher hasher = context.duplicates != null ? context.duplicates.hasher(newFile.getName()) : null;
+		try (FileOutputStream fos = new FileOutputStream(newFile)) {
+			int len;
+			while ((len = in.read(context.buffer)) > 0) {
+				fos.write(context.buffer, 0, len);
+				if (hasher != null) hasher.update(context.buffer, 0, len);
+				bytesWritten += len;
+			}
+		}
+		if (hasher != null) context.duplicates.add(hasher, context.student.studentNo, relativePath(context.student, newFile));
+		return bytesWritten;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Notes an archive of a student's that could not be opened, so it is in
+	* the report (see Roster.saveUnopened). student can be null.
+	* --------------------------------------------------------------------
+	*/
+	static void unopened(Roster.Student student, String file, String reason)
+	{
+		if (reason == null) reason = "it could not be read";
+		Metrics.verbose("Could not open " + file + " ..... " + reason);
+		if (student != null) student.unopened.add(new String[] { file, reason });
+	}
+
+	private static boolean isInside(File file, String destPath, File destDir) throws IOException
+	{
+		if (file.getCanonicalPath().startsWith(destPath)) return true;
+		System.out.println("Skipping " + file + " ..... it is outside " + destDir);
+		return false;
+	}
+
+	private static String relativePath(Roster.Student student, File file)
+	{
+		return student != null ? student.folder.toPath().relativize(file.toPath()).toString() : file.getName();
+	}
+}
@@ -0,0 +1,288 @@
+/**
+* --------------------------------------------------------------------
+* Command line options for the script.
+* Every option is optional. With no arguments the script behaves exactly
+* as it always has (dialogs, sequential unzip, plain feedback copy).
+* --------------------------------------------------------------------
+*/
+
+import java.util.ArrayList;
+import java.util.Set;
+
+public class Options implements Cloneable {
+
+	// Number of worker threads used to unzip the Gradebook (0 = the original sequential unzip)
+	int threads = 0;
+
+	// Size in bytes of each worker's unzip buffers (stored entries do not use them)
+	int bufferSize = BufferPool.DEFAULT_SIZE;
+
+	// Unzip in read, inflate and write stages (see UnzipPipeline), with this many MB of chunks between them,
+	// and this many writers (0 = more for a network drive than a local one)
+	boolean pipeline = false;
+	int pipelineMemory = 32;
+	int writeThreads = 0;
+
+	// How many zips deep a student's own zip is unzipped into their attempt folder (0 = leave it zipped)
+	int nestedDepth = 3;
+
+	// How entry names are laid out (Blackboard, Moodle or Canvas). null works it out from the zip.
+	NamingScheme naming = null;
+
+	// Only unzip what is new or changed since the last time this Gradebook was sorted
+	boolean incremental = false;
+
+	// Hash every file while unzipping and report files that more than one student handed in
+	boolean duplicates = false;
+
+	// Write one zip per student (with the feedback sheet in it) instead of a folder of loose files
+	boolean pack = false;
+
+	// Compile each student's Java files after sorting (see SubmissionCompiler)
+	boolean compile = false;
+
+	// Run this test class against each student's classes (see TestHarness), found on testPath, for at most testTimeout seconds each
+	String test = null;
+	String testPath = ".";
+	int testTimeout = 10;
+
+	// Batch mode: split each Gradebook between this many markers (see GradebookSharder), optionally named
+	int shards = 0;
+	String[] markers = null;
+
+	// Only these students are unzipped (set for each shard, not on the command line). null is every student.
+	Set<String> students = null;
+
+	// Only print what would be unzipped (see UnzipPlan)
+	boolean dryRun = false;
+
+	// How the feedback sheet is put into each student folder (copy, link, clone or symlink)
+	FeedbackPlacer.Mode feedbackMode = FeedbackPlacer.Mode.COPY;
+
+	// QUIET, NORMAL (progress bar) or VERBOSE (a line for every file), and where to save the run's metrics as JSON
+	int verbosity = Metrics.NORMAL;
+	String metrics = null;
+
+	// Batch mode: how many gradebooks are processed at the same time
+	int jobs = Runtime.getRuntime().availableProcessors();
+
+	// Batch mode: the feedback sheet and a file listing the gradebooks to process
+	String template = null;
+	String manifest = null;
+
+	// Watch mode: keep watching the folders given for new gradebooks, using at most this many threads for I/O
+	boolean watch = false;
+	int maxIoThreads = Runtime.getRuntime().availableProcessors();
+
+	// Browse mode: show a Gradebook sorted, without unzipping it, on this port, keeping up to browseCache MB of opened files
+	boolean browse = false;
+	int browsePort = 8000;
+	int browseCache = 64;
+
+	// Batch mode: gradebook zips, or folders of them, given on the command line
+	ArrayList<String> inputs = new ArrayList<String>();
+
+	/**
+	* --------------------------------------------------------------------
+	* Reads the options from the arguments passed to main.
+	* Exits with the usage message if an argument is not recognised.
+	* --------------------------------------------------------------------
+	*/
+	static Options parse(String[] args)
+	{
+		Options options = new Options();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("--threads")) {
+				options.threads = intValue(args, ++i, arg);
+			}
+			else if (arg.equals("--buffer-size")) {
+				options.bufferSize = Math.max(4, intValue(args, ++i, arg)) * 1024;
+			}
+			else if (arg.equals("--pipeline")) {
+				options.pipeline = true;
+			}
+			else if (arg.equals("--pipeline-memory")) {
+				options.pipelineMemory = Math.max(1, intValue(args, ++i, arg));
+			}
+			else if (arg.equals("--write-threads")) {
+				options.writeThreads = intValue(args, ++i, arg);
+			}
+			else if (arg.equals("--nested-depth")) {
+				options.nestedDepth = intValue(args, ++i, arg);
+			}
+			else if (arg.equals("--naming")) {
+				String name = stringValue(args, ++i, arg);
+				options.naming = name.equalsIgnoreCase("auto") ? null : NamingScheme.forName(name);
+				if (options.naming == null && !name.equalsIgnoreCase("auto")) usage(arg + " must be auto, blackboard, moodle or canvas");
+			}
+			else if (arg.equals("--incremental")) {
+				options.incremental = true;
+			}
+			else if (arg.equals("--duplicates")) {
+				options.duplicates = true;
+			}
+			else if (arg.equals("--pack")) {
+				options.pack = true;
+			}
+			else if (arg.equals("--compile")) {
+				options.compile = true;
+			}
+			else if (arg.equals("--test")) {
+				options.test = stringValue(args, ++i, arg);
+				options.compile = true;
+			}
+			else if (arg.equals("--test-path")) {
+				options.testPath = stringValue(args, ++i, arg);
+			}
+			else if (arg.equals("--test-timeout")) {
+				options.testTimeout = Math.max(1, intValue(args, ++i, arg));
+			}
+			else if (arg.equals("--shards")) {
+				options.shards = intValue(args, ++i, arg);
+			}
+			else if (arg.equals("--markers")) {
+				options.markers = stringValue(args, ++i, arg).split(",");
+				options.shards = options.markers.length;
+			}
+			else if (arg.equals("--dry-run")) {
+				options.dryRun = true;
+			}
+			else if (arg.equals("--feedback-mode")) {
+				options.feedbackMode = FeedbackPlacer.mode(stringValue(args, ++i, arg));
+				if (options.feedbackMode == null) usage(arg + " must be copy, link, clone or symlink");
+			}
+			else if (arg.equals("--verbose")) {
+				options.verbosity = Metrics.VERBOSE;
+			}
+			else if (arg.equals("--quiet")) {
+				options.verbosity = Metrics.QUIET;
+			}
+			else if (arg.equals("--metrics")) {
+				options.metrics = stringValue(args, ++i, arg);
+			}
+			else if (arg.equals("--jobs")) {
+				options.jobs = Math.max(1, intValue(args, ++i, arg));
+			}
+			else if (arg.equals("--watch")) {
+				options.watch = true;
+			}
+			else if (arg.equals("--max-io-threads")) {
+				options.maxIoThreads = Math.max(1, intValue(args, ++i, arg));
+			}
+			else if (arg.equals("--browse")) {
+				options.browse = true;
+			}
+			else if (arg.equals("--port")) {
+				options.browsePort = intValue(args, ++i, arg);
+			}
+			else if (arg.equals("--browse-cache")) {
+				options.browseCache = Math.max(1, intValue(args, ++i, arg));
+			}
+			else if (arg.equals("--template")) {
+				options.template = stringValue(args, ++i, arg);
+			}
+			else if (arg.equals("--manifest")) {
+				options.manifest = stringValue(args, ++i, arg);
+			}
+			else if (arg.equals("--help")) {
+				usage("");
+			}
+			else if (arg.startsWith("--")) {
+				usage("Unknown option: " + arg);
+			}
+			else {
+				options.inputs.add(arg);
+			}
+		}
+		return options;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Gets a copy of the options that can be changed for one gradebook.
+	* --------------------------------------------------------------------
+	*/
+	Options copy()
+	{
+		try {
+			return (Options) clone();
+		}
+		catch (CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Gets the number following an option, eg, '--threads 8'.
+	* --------------------------------------------------------------------
+	*/
+	static int intValue(String[] args, int i, String option)
+	{
+		try {
+			int value = Integer.parseInt(args[i]);
+			if (value < 0) usage(option + " cannot be negative");
+			return value;
+		}
+		catch(Exception e) {
+			usage(option + " needs a number after it");
+			return 0;
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Gets the text following an option, eg, '--template Feedback.xlsx'.
+	* --------------------------------------------------------------------
+	*/
+	static String stringValue(String[] args, int i, String option)
+	{
+		if (i >= args.length) usage(option + " needs a value after it");
+		return args[i];
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Prints how to use the script and closes the program.
+	* --------------------------------------------------------------------
+	*/
+	static void usage(String message)
+	{
+		if (!message.equals("")) System.out.println(message);
+		System.out.println("Usage: java Script [options]");
+		System.out.println("       java BatchScript --template FILE [options] [--manifest FILE] [GRADEBOOK.zip | FOLDER]...");
+		System.out.println("       java BatchScript --watch --template FILE [options] FOLDER...");
+		System.out.println("       java BatchScript --browse [--port N] GRADEBOOK.zip");
+		System.out.println("  --threads N        unzip each Gradebook with N worker threads (default: sequential)");
+		System.out.println("  --buffer-size KB   size of each unzip thread's buffers in KB (default: 64)");
+		System.out.println("  --pipeline         unzip in separate read, inflate (--threads) and write stages, and report which held it up");
+		System.out.println("  --pipeline-memory MB  pipeline: MB of chunks between the stages, however big the files are (default: 32)");
+		System.out.println("  --write-threads N  pipeline: threads writing files (default: 4, or 16 on a network drive)");
+		System.out.println("  --nested-depth N   unzip student zips up to N zips deep into 'attempt' (default: 3, 0 = off)");
+		System.out.println("  --naming S         file names from blackboard, moodle or canvas (default: auto)");
+		System.out.println("  --incremental      only unzip new or changed files into an already sorted folder");
+		System.out.println("  --duplicates       report files that are the same (or the same apart from spacing) across students");
+		System.out.println("  --pack             one zip per student (with the feedback sheet) instead of a folder");
+		System.out.println("  --compile          compile each student's Java files into 'classes' and save compile.csv");
+		System.out.println("  --test CLASS       compile, then run CLASS's main(folder, studentNo) against each student; save tests.csv");
+		System.out.println("  --test-path PATH   where the test class is, as a class path (default: the current folder)");
+		System.out.println("  --test-timeout S   most seconds (and seconds of CPU time) each student's test can take (default: 10)");
+		System.out.println("  --shards N         batch mode: split each Gradebook between N markers, balanced by size (see Gradebook.shards.csv)");
+		System.out.println("  --markers A,B,C    batch mode: split each Gradebook between these markers (one shard each)");
+		System.out.println("  --dry-run          check each Gradebook and print what would be unzipped, without unzipping it");
+		System.out.println("  --feedback-mode M  copy (default), clone (copy-on-write), or link / symlink (hard / symbolic links to one shared, read-only sheet)");
+		System.out.println("  --verbose          print a line for every file unzipped and sheet copied");
+		System.out.println("  --quiet            no progress bar");
+		System.out.println("  --metrics FILE     save counts, phase times and write latencies as JSON at the end");
+		System.out.println("  --jobs N           batch mode: process N gradebooks at the same time (default: one per core)");
+		System.out.println("  --template FILE    batch mode: feedback sheet copied into every student folder");
+		System.out.println("  --watch            batch mode: keep sorting new gradebooks as they are downloaded into the folders");
+		System.out.println("  --max-io-threads N watch mode: most threads unzipping at once, over every gradebook (default: one per core)");
+		System.out.println("  --browse           show GRADEBOOK.zip sorted in a web browser, unzipping only the files opened");
+		System.out.println("  --port N           browse mode: port on localhost to serve on (default: 8000, 0 = any free port)");
+		System.out.println("  --browse-cache MB  browse mode: most MB of opened files kept in memory (default: 64)");
+		System.out.println("  --manifest FILE    batch mode: text file listing gradebooks (and optionally 'template=FILE')");
+		System.exit(message.equals("") ? 0 : 1);
+	}
+}
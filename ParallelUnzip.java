@@ -0,0 +1,431 @@
+/**
+* --------------------------------------------------------------------
+* Unzips the Gradebook using several threads.
+* The zip's central directory is read up front (through ZipIndex), so each
+* entry can be unzipped on its own, by any worker, in any order.
+* STORED entries (Blackboard stores most uploads as they are) are copied
+* from the Gradebook to their file by the operating system with
+* FileChannel.transferTo, so their bytes never come into Java. Deflated
+* entries are inflated through buffers taken from a BufferPool.
+* The sorted folders are exactly the same as the ones Script.unzip makes.
+* Student zips are each their own job, so they are unzipped in parallel
+* across students.
+* Every file's CRC-32 is checked against the one in the Gradebook, and a
+* file that does not match is deleted and reported as an error.
+* Each finished entry is added to an UnzipJournal, so an unzip that stops
+* part way carries on from where it was when it is run again.
+* With --pipeline each entry is read, inflated and written by separate
+* stages instead of by one worker (see UnzipPipeline).
+* --------------------------------------------------------------------
+*/
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+public class ParallelUnzip {
+
+	// Size of the buffer used to unzip a student's own zip
+	static final int BUFFER_SIZE = BufferPool.DEFAULT_SIZE;
+
+	// Each thread's buffer for checking the CRC of entries copied by transferTo (outside the Java heap, as they are)
+	private static final ThreadLocal<ByteBuffer> CRC_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+	private final int threads;
+	private final int nestedDepth;
+	private final NamingScheme naming;
+	private final BufferPool buffers;
+
+	// Set to unzip in read, inflate and write stages (see UnzipPipeline). null for one worker per entry.
+	private final Options pipelineOptions;
+
+	// Set when only new or changed entries should be unzipped (see IncrementalSync)
+	private final IncrementalSync sync;
+
+	// Only these students are unzipped (null for all of them)
+	private final Set<String> students;
+
+	// Set when every file is hashed to find duplicates across students (stored files then go through the buffers too)
+	private final DuplicateIndex duplicates;
+
+	// Entries that could not be written, so the journal is kept for another run
+	private final AtomicInteger failures = new AtomicInteger();
+
+	// Totals for the throughput report
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicInteger entriesWritten = new AtomicInteger();
+
+	// Bytes moved by each write path: transferTo for stored entries, and the pooled buffers for the rest
+	private final AtomicLong bytesTransferred = new AtomicLong(), bytesInflated = new AtomicLong();
+	private final AtomicInteger entriesTransferred = new AtomicInteger(), entriesInflated = new AtomicInteger();
+
+	public ParallelUnzip(Options options)
+	{
+		this(options, null);
+	}
+
+	ParallelUnzip(Options options, IncrementalSync sync)
+	{
+		this.threads = Math.max(1, options.threads);
+		this.nestedDepth = options.nestedDepth;
+		this.naming = options.naming;
+		this.buffers = new BufferPool(options.bufferSize);
+		this.pipelineOptions = options.pipeline ? options : null;
+		this.sync = sync;
+		this.students = options.students;
+		this.duplicates = options.duplicates ? new DuplicateIndex() : null;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Unzips the Gradebook into one folder per student and returns the
+	* roster of students, in the order they first appear in the zip.
+	* --------------------------------------------------------------------
+	*/
+	public Roster unzip(String zipFilePath, String destDir)
+	{
+		long start = System.nanoTime();
+		Roster roster = new Roster(destDir);
+		File dir = new File(destDir);
+
+		// create output directory if it doesn't exist
+		if(!dir.exists()) dir.mkdirs();
+
+		// An incremental run keeps its own record of what has been unzipped (its manifest)
+		UnzipJournal journal = sync == null ? UnzipJournal.open(zipFilePath, destDir) : null;
+		if (journal != null && journal.resuming()) {
+			System.out.println("Carrying on from the last unzip, which stopped part way: " + journal.doneBefore() + " files were already done.");
+		}
+		boolean complete = false;
+
+		UnzipPipeline pipeline = null;
+		ExecutorService workers = null;
+		try (ZipIndex zip = new ZipIndex(new File(zipFilePath))) {
+			// The pipeline's writers also unzip student zips, which are mostly writing
+			if (pipelineOptions != null) pipeline = new UnzipPipeline(zip, destDir, pipelineOptions);
+			workers = pipeline != null ? pipeline.writers() : Executors.newFixedThreadPool(threads);
+			NamingScheme scheme = naming;
+			NamingScheme.ParsedName parsed = new NamingScheme.ParsedName();
+
+			// The folders are made here, on one thread, so the workers only ever write files
+			for (ZipIndex.Entry ze : zip.entries()) {
+				if (ze.isDirectory()) continue;
+
+				if (scheme == null) scheme = NamingScheme.detect(ze.name);
+				scheme.read(ze.name, parsed);
+				if (students != null && !students.contains(parsed.studentNo())) continue;
+				String fileName = parsed.sortedFileName();
+				Roster.Student student = roster.student(parsed);
+				roster.add(student, ze.size);
+				File studentFolder = student.folder;
+				File newFile = new File(studentFolder + File.separator + fileName);
+				boolean nested = NestedUnzip.isNestedZip(fileName, nestedDepth);
+				File target = nested ? new File(studentFolder, NestedUnzip.ATTEMPT_FOLDER) : newFile;
+
+				// Finished by the last run. Only the duplicate check still needs its bytes.
+				if (journal != null && journal.isDone(ze.name, ze.crc)) {
+					if (duplicates != null && !nested) workers.execute(() -> hashDone(newFile, student));
+					continue;
+				}
+
+				// Skips entries that have not changed since the last run, and never overwrites a marked file
+				if (sync != null) target = sync.target(ze, target, nested);
+				if (target == null) continue;
+				if (fileName.indexOf('/') >= 0) target.getParentFile().mkdirs();
+
+				File writeTo = target;
+				Metrics.expect(1);
+				if (nested) {
+					workers.execute(() -> extractNested(zip, ze, writeTo, newFile, student, journal));
+				}
+				else if (pipeline != null) {
+					// Read on this thread, then inflated and written by the pipeline's other stages
+					long entryStart = System.nanoTime();
+					SubmissionInfo info = SubmissionInfo.isInfoFile(writeTo.getName()) ? new SubmissionInfo() : null;
+					DuplicateIndex.Hasher hasher = duplicates != null ? duplicates.hasher(writeTo.getName()) : null;
+					pipeline.add(ze, writeTo, info, hasher, (written, error) -> finished(ze, writeTo, student, journal, info, hasher, written, entryStart, error));
+				}
+				else {
+					workers.execute(() -> extract(zip, ze, writeTo, student, journal));
+				}
+			}
+
+			// Wait for every entry to be written before the zip is closed
+			if (pipeline != null) pipeline.awaitInflated();
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			complete = failures.get() == 0;
+		}
+		catch (IOException e) {
+			Metrics.error();
+			e.printStackTrace();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			if (workers != null) workers.shutdownNow();
+			if (pipeline != null) pipeline.close();
+			buffers.close();
+			if (journal != null) journal.finish(complete);
+		}
+		if (!complete) roster.failed();
+
+		if (duplicates != null) duplicates.writeReport(destDir);
+		if (pipeline != null) {
+			Script.outputThroughput("Pipelined unzip", entriesWritten.get(), bytesWritten.get(), start);
+			pipeline.report();
+		}
+		else {
+			Script.outputThroughput("Parallel unzip (" + threads + " threads)", entriesWritten.get(), bytesWritten.get(), start);
+			System.out.println(String.format("Write paths: %d stored files (%d bytes) by transferTo, %d files (%d bytes) through %d KB buffers",
+				entriesTransferred.get(), bytesTransferred.get(), entriesInflated.get(), bytesInflated.get(), buffers.size() / 1024));
+		}
+		return roster;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Writes one entry to its file. Runs on a worker thread.
+	* The student's details are read from their Info.txt as it is written,
+	* so Info files always go through the buffers, even when stored.
+	* --------------------------------------------------------------------
+	*/
+	private void extract(ZipIndex zip, ZipIndex.Entry ze, File newFile, Roster.Student student, UnzipJournal journal)
+	{
+		long start = System.nanoTime();
+		SubmissionInfo info = student != null && SubmissionInfo.isInfoFile(newFile.getName()) ? new SubmissionInfo() : null;
+		DuplicateIndex.Hasher hasher = student != null && duplicates != null ? duplicates.hasher(newFile.getName()) : null;
+		try (FileOutputStream fos = new FileOutputStream(newFile)) {
+			if (ze.isEncrypted()) throw new ZipException(ze.name + " is encrypted");
+			long written;
+			if (ze.method == ZipIndex.STORED && info == null && hasher == null) {
+				written = transfer(zip, ze, fos.getChannel());
+				bytesTransferred.addAndGet(written);
+				entriesTransferred.incrementAndGet();
+			}
+			else {
+				written = copy(zip, ze, fos, info, hasher);
+				bytesInflated.addAndGet(written);
+				entriesInflated.incrementAndGet();
+			}
+			finished(ze, newFile, student, journal, info, hasher, written, start, null);
+		}
+		catch (IOException e) {
+			// Nothing is left of an entry that could not be unzipped (or was corrupt)
+			newFile.delete();
+			finished(ze, newFile, student, journal, info, hasher, 0, start, e);
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Counts an entry once it has been written (or reports why it could not
+	* be), and adds it to the roster's details, the duplicate check and the
+	* journal. Runs on whichever thread finished the entry.
+	* --------------------------------------------------------------------
+	*/
+	private void finished(ZipIndex.Entry ze, File newFile, Roster.Student student, UnzipJournal journal, SubmissionInfo info, DuplicateIndex.Hasher hasher,
+		long written, long start, IOException error)
+	{
+		if (error != null) {
+			Metrics.error();
+			failures.incrementAndGet();
+			System.out.println("Could not unzip " + ze.name + " to " + newFile.getAbsolutePath());
+			error.printStackTrace();
+			return;
+		}
+		bytesWritten.addAndGet(written);
+		entriesWritten.incrementAndGet();
+		if (info != null) student.info = info.finish();
+		if (hasher != null) duplicates.add(hasher, student.studentNo, student.folder.toPath().relativize(newFile.toPath()).toString());
+		Metrics.entry(written, start);
+		if (sync != null) sync.written(ze, newFile);
+		if (journal != null) journal.record(ze.name, ze.crc, ze.localHeaderOffset);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Hashes a file the last run wrote, so it is still in the duplicate
+	* report. Runs on a worker thread.
+	* --------------------------------------------------------------------
+	*/
+	private void hashDone(File file, Roster.Student student)
+	{
+		DuplicateIndex.Hasher hasher = duplicates.hasher(file.getName());
+		if (hasher == null) return;
+		BufferPool.Buffers b = buffers.take();
+		try (InputStream in = new FileInputStream(file)) {
+			int len;
+			while ((len = in.read(b.in)) > 0) hasher.update(b.in, 0, len);
+			duplicates.add(hasher, student.studentNo, student.folder.toPath().relativize(file.toPath()).toString());
+		}
+		catch (IOException e) {
+			System.out.println("Could not check " + file + " for duplicates ..... " + e.getMessage());
+		}
+		finally {
+			buffers.give(b);
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Copies a stored entry's bytes from the Gradebook straight into its file.
+	* transferTo can move less than asked for, so it is called until it is all there.
+	* The bytes are then read again for the CRC check, into a direct buffer,
+	* while they are still in the operating system's cache.
+	* --------------------------------------------------------------------
+	*/
+	static long transfer(ZipIndex zip, ZipIndex.Entry ze, FileChannel out) throws IOException
+	{
+		long start = zip.dataOffset(ze), end = start + ze.compressedSize;
+		long position = start;
+		while (position < end) {
+			long moved = zip.channel().transferTo(position, end - position, out);
+			if (moved <= 0) throw new ZipException("Unexpected end of " + ze.name);
+			position += moved;
+		}
+
+		CRC32 crc = new CRC32();
+		ByteBuffer buffer = CRC_BUFFER.get();
+		for (position = start; position < end; ) {
+			buffer.clear();
+			if (end - position < buffer.capacity()) buffer.limit((int) (end - position));
+			int len = zip.channel().read(buffer, position);
+			if (len < 0) throw new ZipException("Unexpected end of " + ze.name);
+			buffer.flip();
+			crc.update(buffer);
+			position += len;
+		}
+		checkCrc(ze, crc);
+		return ze.compressedSize;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Checks the CRC-32 of what was written against the one the Gradebook
+	* has for the entry.
+	* --------------------------------------------------------------------
+	*/
+	static void checkCrc(ZipIndex.Entry ze, CRC32 crc) throws ZipException
+	{
+		if (crc.getValue() != ze.crc) {
+			throw new ZipException(String.format("%s is corrupt ..... its CRC-32 is %08x, not %08x", ze.name, crc.getValue(), ze.crc));
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Reads an entry through pooled buffers, inflating it if it is deflated,
+	* and writes it to its file. Returns how many bytes were written.
+	* --------------------------------------------------------------------
+	*/
+	private long copy(ZipIndex zip, ZipIndex.Entry ze, FileOutputStream fos, SubmissionInfo info, DuplicateIndex.Hasher hasher) throws IOException
+	{
+		if (ze.method != ZipIndex.STORED && ze.method != ZipIndex.DEFLATED) {
+			throw new ZipException(ze.name + " uses compression method " + ze.method + ", which is not supported");
+		}
+
+		BufferPool.Buffers b = buffers.take();
+		CRC32 crc = new CRC32();
+		try (InputStream raw = zip.rawInputStream(ze)) {
+			long written = 0;
+			if (ze.method == ZipIndex.STORED) {
+				int len;
+				while ((len = raw.read(b.in)) > 0) {
+					fos.write(b.in, 0, len);
+					crc.update(b.in, 0, len);
+					if (info != null) info.update(b.in, 0, len);
+					if (hasher != null) hasher.update(b.in, 0, len);
+					written += len;
+				}
+				checkCrc(ze, crc);
+				return written;
+			}
+
+			Inflater inflater = b.inflater;
+			boolean padded = false;
+			while (!inflater.finished()) {
+				if (inflater.needsInput()) {
+					int len = raw.read(b.in);
+					if (len > 0) {
+						inflater.setInput(b.in, 0, len);
+					}
+					else if (!padded) {
+						// The Inflater can need one byte past the end of the data to finish
+						padded = true;
+						b.in[0] = 0;
+						inflater.setInput(b.in, 0, 1);
+					}
+					else {
+						throw new ZipException("Unexpected end of " + ze.name);
+					}
+				}
+				int len = inflater.inflate(b.out);
+				if (len > 0) {
+					fos.write(b.out, 0, len);
+					crc.update(b.out, 0, len);
+					if (info != null) info.update(b.out, 0, len);
+					if (hasher != null) hasher.update(b.out, 0, len);
+					written += len;
+				}
+				else if (inflater.needsDictionary()) {
+					throw new ZipException(ze.name + " is not a valid deflated entry");
+				}
+			}
+			checkCrc(ze, crc);
+			return written;
+		}
+		catch (DataFormatException e) {
+			throw new ZipException(ze.name + " is corrupt ..... " + e.getMessage());
+		}
+		finally {
+			buffers.give(b);
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Opens a student's own archive into their attempt folder. Runs on a worker thread.
+	* If it cannot be opened the archive is written out as it is instead.
+	* --------------------------------------------------------------------
+	*/
+	private void extractNested(ZipIndex zip, ZipIndex.Entry ze, File attemptFolder, File zipFile, Roster.Student student, UnzipJournal journal)
+	{
+		long start = System.nanoTime();
+		try (InputStream in = zip.inputStream(ze, buffers.size())) {
+			NestedUnzip.Archive archive = NestedUnzip.open(in);
+			if (!archive.canExtract()) {
+				NestedUnzip.unopened(student, zipFile.getName(), archive.reason());
+				extract(zip, ze, zipFile, student, journal);
+				return;
+			}
+			long written = NestedUnzip.extract(archive, zipFile.getName(), attemptFolder, nestedDepth, duplicates, student);
+			bytesWritten.addAndGet(written);
+			entriesWritten.incrementAndGet();
+			Metrics.entry(written, start);
+			Metrics.phase(Metrics.Phase.NESTED, start);
+			if (sync != null) sync.written(ze, attemptFolder);
+			if (journal != null) journal.record(ze.name, ze.crc, ze.localHeaderOffset);
+		}
+		catch (IOException e) {
+			System.out.println(zipFile.getName() + " could not be unzipped, so it was saved as it is ..... " + e.getMessage());
+			NestedUnzip.unopened(student, zipFile.getName(), e.getMessage());
+			extract(zip, ze, zipFile, null, journal);
+		}
+	}
+}
@@ -0,0 +1,325 @@
+/**
+* --------------------------------------------------------------------
+* The students found in a Gradebook, looked up by student number.
+* Each student's folder is made once, the first time they are seen, and
+* the number of Gradebook entries and their (unzipped) sizes are counted.
+*
+* The roster is saved beside the sorted folder ('Gradebook.roster' next to
+* 'Gradebook') so later steps can read it instead of scanning the folders
+* (eg, the plan and --incremental, to tell who is new or has gone).
+* Each line is: student number, folder, entries, bytes (separated by tabs).
+* A 'roster.csv' with each student's details from their Info.txt is saved
+* inside the sorted folder as well, for the tutors, and an 'unopened.csv'
+* listing any student archives the script could not open.
+*
+* Not thread safe. It is only used from the thread reading the Gradebook.
+* --------------------------------------------------------------------
+*/
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+public class Roster {
+
+	static final String INDEX_EXTENSION = ".roster";
+	static final String CSV_NAME = "roster.csv";
+	static final String UNOPENED_NAME = "unopened.csv";
+
+	/**
+	* --------------------------------------------------------------------
+	* One student. isNew is true if their folder was made by this run.
+	* In pack mode 'folder' is the student's zip instead.
+	* --------------------------------------------------------------------
+	*/
+	static class Student {
+		final String studentNo;
+		final File folder;
+		final boolean isNew;
+		int entries = 0;
+		long bytes = 0;
+
+		// Read from their Info.txt as it is unzipped. Set by the unzip's worker threads.
+		volatile SubmissionInfo info = null;
+
+		// Their archives that could not be opened: file (in their folder) and why (see NestedUnzip.unopened)
+		final List<String[]> unopened = Collections.synchronizedList(new ArrayList<String[]>());
+
+		Student(String studentNo, File folder, boolean isNew)
+		{
+			this.studentNo = studentNo;
+			this.folder = folder;
+			this.isNew = isNew;
+		}
+	}
+
+	private final String destDir;
+
+	// Pack mode: each student has a zip in destDir instead of a folder (see StudentPacker)
+	private final boolean packed;
+
+	// Keeps the students in the order they appear in the Gradebook
+	private final LinkedHashMap<String, Student> students = new LinkedHashMap<String, Student>();
+
+	// Cleared if anything could not be unzipped, so the roster is only part of the Gradebook.
+	// Set by the unzip's worker threads.
+	private volatile boolean complete = true;
+
+	// The student looked up last. A student's entries are usually next to each other in the zip.
+	private Student last = null;
+
+	public Roster(String destDir)
+	{
+		this(destDir, false);
+	}
+
+	Roster(String destDir, boolean packed)
+	{
+		this.destDir = destDir;
+		this.packed = packed;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Gets a student, making their folder if this is the first time they are seen.
+	* --------------------------------------------------------------------
+	*/
+	Student student(String studentNo)
+	{
+		Student student = students.get(studentNo);
+		if (student == null) {
+			File folder = packed ? new File(destDir, studentNo + StudentPacker.PACK_EXTENSION) : Script.studentFolder(destDir, studentNo);
+			boolean isNew = !folder.exists();
+			if (isNew && !packed) folder.mkdirs();
+			student = new Student(studentNo, folder, isNew);
+			students.put(studentNo, student);
+			Metrics.student();
+		}
+		return student;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Counts an entry unzipped for a student.
+	* --------------------------------------------------------------------
+	*/
+	void add(Student student, long bytes)
+	{
+		student.entries++;
+		if (bytes > 0) student.bytes += bytes;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Gets the student a parsed entry name belongs to. The student number is
+	* only made into a String the first time each student is seen.
+	* --------------------------------------------------------------------
+	*/
+	Student student(NamingScheme.ParsedName parsed)
+	{
+		if (last == null || !parsed.studentNoEquals(last.studentNo)) {
+			last = student(parsed.studentNo());
+		}
+		return last;
+	}
+
+	Student get(String studentNo)
+	{
+		return students.get(studentNo);
+	}
+
+	Collection<Student> students()
+	{
+		return students.values();
+	}
+
+	// Called when anything could not be unzipped
+	void failed()
+	{
+		complete = false;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Whether everything in the Gradebook was unzipped (or packed).
+	* --------------------------------------------------------------------
+	*/
+	boolean complete()
+	{
+		return complete;
+	}
+
+	int size()
+	{
+		return students.size();
+	}
+
+	String destDir()
+	{
+		return destDir;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Gets every student's folder, in the order they appear in the Gradebook.
+	* --------------------------------------------------------------------
+	*/
+	ArrayList<File> folders()
+	{
+		ArrayList<File> folders = new ArrayList<File>(students.size());
+		for (Student student : students.values()) folders.add(student.folder);
+		return folders;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Gets only the folders this run made (used when re-syncing a Gradebook).
+	* --------------------------------------------------------------------
+	*/
+	ArrayList<File> newFolders()
+	{
+		ArrayList<File> folders = new ArrayList<File>();
+		for (Student student : students.values()) {
+			if (student.isNew) folders.add(student.folder);
+		}
+		return folders;
+	}
+
+	static File indexFile(String destDir)
+	{
+		return new File(destDir + INDEX_EXTENSION);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Saves the roster beside the sorted folder.
+	* --------------------------------------------------------------------
+	*/
+	void save()
+	{
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(indexFile(destDir)))) {
+			for (Student student : students.values()) {
+				writer.write(student.studentNo + "\t" + student.folder.getName() + "\t" + student.entries + "\t" + student.bytes);
+				writer.newLine();
+			}
+		}
+		catch (IOException e) {
+			System.out.println("Could not save the roster " + indexFile(destDir) + " ..... " + e.getMessage());
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Saves 'roster.csv' in the sorted folder: one line per student with
+	* the details from their Info.txt. If an Info.txt was not unzipped this
+	* run (eg, when re-syncing) the copy already in their folder is read.
+	* --------------------------------------------------------------------
+	*/
+	void saveCsv()
+	{
+		File csv = new File(destDir, CSV_NAME);
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(csv))) {
+			writer.write("student_no,name,assignment,submitted,due,grade,attempt,folder,files,bytes");
+			writer.newLine();
+			for (Student student : students.values()) {
+				SubmissionInfo info = info(student);
+				writer.write(csv(student.studentNo) + "," + csv(info.name) + "," + csv(info.assignment) + ","
+					+ csv(info.submitted) + "," + csv(info.due) + "," + csv(info.grade) + "," + csv(info.attempt) + ","
+					+ csv(student.folder.getName()) + "," + student.entries + "," + student.bytes);
+				writer.newLine();
+			}
+		}
+		catch (IOException e) {
+			System.out.println("Could not save " + csv + " ..... " + e.getMessage());
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Saves 'unopened.csv' in the sorted folder: one line for each student
+	* archive that could not be opened (eg, a RAR, or a '.zip' that is not
+	* a zip), so they can be opened by hand. Removed if there are none.
+	* --------------------------------------------------------------------
+	*/
+	void saveUnopened()
+	{
+		File csv = new File(destDir, UNOPENED_NAME);
+		int archives = 0, withArchives = 0;
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(csv))) {
+			writer.write("student_no,name,file,reason");
+			writer.newLine();
+			for (Student student : students.values()) {
+				if (student.unopened.isEmpty()) continue;
+				withArchives++;
+				String name = info(student).name;
+				for (String[] archive : student.unopened) {
+					writer.write(csv(student.studentNo) + "," + csv(name) + "," + csv(archive[0]) + "," + csv(archive[1]));
+					writer.newLine();
+					archives++;
+				}
+			}
+		}
+		catch (IOException e) {
+			System.out.println("Could not save " + csv + " ..... " + e.getMessage());
+			return;
+		}
+		if (archives == 0) csv.delete();
+		else System.out.println(archives + " archives from " + withArchives + " students could not be opened, so they were saved as they are. See " + csv);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Gets a student's details from their Info.txt. If it was not unzipped
+	* this run the copy already in their folder is read.
+	* --------------------------------------------------------------------
+	*/
+	static SubmissionInfo info(Student student) throws IOException
+	{
+		if (student.info != null) return student.info;
+		File infoFile = new File(student.folder, student.studentNo + SubmissionInfo.INFO_SUFFIX);
+		return infoFile.isFile() ? SubmissionInfo.read(infoFile) : new SubmissionInfo();
+	}
+
+	// Quotes a CSV value if it needs it
+	static String csv(String value)
+	{
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) return value;
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Reads a saved roster. Returns null if the Gradebook has not been sorted yet.
+	* --------------------------------------------------------------------
+	*/
+	static Roster load(String destDir)
+	{
+		File index = indexFile(destDir);
+		if (!index.exists()) return null;
+
+		Roster roster = new Roster(destDir);
+		try (BufferedReader reader = new BufferedReader(new FileReader(index))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				Student student = new Student(fields[0], new File(destDir, fields[1]), false);
+				student.entries = Integer.parseInt(fields[2]);
+				student.bytes = Long.parseLong(fields[3]);
+				roster.students.put(student.studentNo, student);
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			System.out.println("Could not read the roster " + index + " ..... " + e.getMessage());
+			return null;
+		}
+		return roster;
+	}
+}
@@ -21,6 +21,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -29,8 +30,13 @@ import javax.swing.*;
 
 public class Script {
 
+	// Options passed in from the command line
+	private Options options;
+
     public static void main(String[] args) {
        Script unzipAndSort = new Script();
+	   unzipAndSort.options = Options.parse(args);
+	   Metrics.verbosity = unzipAndSort.options.verbosity;
 	   unzipAndSort.runScript();
     }
 	
@@ -45,16 +51,41 @@ public class Script {
 		
 		// Gets location of the zip file and where the unzipped file should go
 		String zipFilePath = zip + "";
-        String unzipDestination = zipFilePath.substring(0, zipFilePath.indexOf(".zip"));
+        String unzipDestination = unzipDestination(zipFilePath);
 		output(unzipDestination);
 		
+		// Only says what would be unzipped
+		if (options.dryRun) System.exit(UnzipPlan.dryRun(zipFilePath, unzipDestination, options) ? 0 : 1);
+		
+		// In pack mode the feedback sheet goes into each student's zip, so it is needed first
+		if (options.pack) {
+			File feedback = selectFile("Please select the feedback sheet for this Assignment. "
+				+ "\nIt will be put into each of the student's zips.");
+			selectFileException(feedback == null || feedback.isDirectory(), "No feedback sheet selected. Nothing was packed.");
+			options.template = feedback + "";
+			output("Selected feedback: " + options.template);
+		}
+		
 		// Unzip the folder, sorted, per student assignment
-		ArrayList<File> studentFolders = unzip(zipFilePath, unzipDestination);
+		Metrics.startProgress();
+		Roster roster = unzip(zipFilePath, unzipDestination, options);
+		ArrayList<File> studentFolders = options.incremental ? roster.newFolders() : roster.folders();
+		selectFileException(roster.size() == 0, "Nothing was unzipped.");
 		
 		output("---------------------------------------------------------------");
-		output("-------------------- UNZIPPING COMPLETE -----------------------");
+		output(roster.complete()
+			? "-------------------- UNZIPPING COMPLETE -----------------------"
+			: "------- UNZIPPING FINISHED, BUT SOME FILES COULD NOT BE -------");
 		output("---------------------------------------------------------------");
 		
+		// The student zips already have their feedback sheets
+		if (options.pack) {
+			Metrics.stopProgress();
+			if (options.metrics != null) Metrics.save(options.metrics);
+			output("Every student's files and feedback sheet have been packed into their own zip. The folder will now open automatically.");
+			end(unzipDestination);
+		}
+		
 		// Get the feedback sheet
 		File feedback = selectFile("Please select the feedback sheet for this Assignment. "
 			+ "\nIt will be copied into each of the student's folders.");
@@ -78,12 +109,32 @@ public class Script {
 			output("Selected feedback: " + copyFrom);
 		}
 		
+		// Fill in each student's details if the sheet has placeholders for them
+		FeedbackRenderer renderer = FeedbackRenderer.load(copyFrom);
+		if (renderer != null) {
+			renderer.render(roster, studentFolders, feedbackFileName, options.threads);
+		}
 		// Copy the feedback sheet into each student folder
-		for (File file : studentFolders) {
-			output("Copying " + copyFrom + " to " + file.getAbsolutePath());
-			copyFeedback(copyFrom, file.getAbsolutePath() + "\\" + feedbackFileName);
+		else if (options.feedbackMode == FeedbackPlacer.Mode.COPY) {
+			long start = System.nanoTime();
+			for (File file : studentFolders) {
+				Metrics.verbose("Copying " + copyFrom + " to " + file.getAbsolutePath());
+				copyFeedback(copyFrom, file.getAbsolutePath() + "\\" + feedbackFileName);
+			}
+			Metrics.phase(Metrics.Phase.FEEDBACK, start);
+		}
+		// Or link/clone it into each student folder
+		else {
+			new FeedbackPlacer(options.feedbackMode).place(copyFrom, unzipDestination, studentFolders, feedbackFileName);
 		}
 		
+		// Compile each student's Java files, so build failures are known before marking, then test them
+		java.util.List<SubmissionCompiler.Result> compiled = options.compile ? new SubmissionCompiler(options).compile(roster) : null;
+		if (options.test != null && compiled != null) new TestHarness(options).run(roster, compiled);
+		
+		Metrics.stopProgress();
+		if (options.metrics != null) Metrics.save(options.metrics);
+		
 		output("---------------------------------------------------------------");
 		output("----------------------- COPY COMPLETE -------------------------");
 		output("---------------------------------------------------------------");
@@ -137,14 +188,61 @@ public class Script {
 		}
 	}
 	
+	/**
+	* --------------------------------------------------------------------
+	* Unzips the Gradebook with whichever unzip the options ask for, and
+	* saves the roster of students beside the sorted folder.
+	* --------------------------------------------------------------------
+	*/
+	static Roster unzip(String zipFilePath, String destDir, Options options) {
+		long start = System.nanoTime();
+		
+		// Checks the Gradebook will fit and makes its folders before any file is written
+		if (!UnzipPlan.prepare(zipFilePath, destDir, options)) {
+			Roster nothing = new Roster(destDir);
+			nothing.failed();
+			return nothing;
+		}
+		
+		Roster roster;
+		if (options.pack) {
+			if (options.incremental) System.out.println("--incremental does not work with --pack, so every student zip will be written again.");
+			roster = new StudentPacker(options).pack(zipFilePath, destDir);
+		}
+		else if (options.incremental) {
+			roster = IncrementalSync.unzip(zipFilePath, destDir, options);
+		}
+		else if (options.threads > 0 || options.pipeline || options.students != null || UnzipJournal.journalFile(destDir).isFile()) {
+			// A stopped unzip carries on where it was, and a shard skips other students' files,
+			// which both need the zip's central directory (so at least one thread)
+			roster = new ParallelUnzip(options).unzip(zipFilePath, destDir);
+		}
+		else {
+			roster = unzip(zipFilePath, destDir, options.nestedDepth, options.naming, options.duplicates ? new DuplicateIndex() : null);
+		}
+		Metrics.phase(Metrics.Phase.UNZIP, start);
+		roster.save();
+		roster.saveCsv();
+		roster.saveUnopened();
+		return roster;
+	}
+	
 	/**
 	* --------------------------------------------------------------------
 	* Unzips the initial Gradebook zip folder.
+	* Student zips are unzipped into their 'attempt' folder as they are
+	* read, up to nestedDepth zips deep (0 leaves them zipped).
+	* naming: how entry names are laid out (null works it out from the first entry)
+	* duplicates: hashes every file to find ones students share (null to not)
+	* Each finished entry is added to an UnzipJournal (see Script.unzip).
 	* --------------------------------------------------------------------
 	*/
-	private static ArrayList<File> unzip(String zipFilePath, String destDir) {
+	static Roster unzip(String zipFilePath, String destDir, int nestedDepth, NamingScheme naming, DuplicateIndex duplicates) {
 		// https://www.journaldev.com/960/java-unzip-file-example
-		ArrayList<File> listOfStudentFolders = new ArrayList<File>();
+		long start = System.nanoTime();
+		int entriesWritten = 0;
+		long bytesWritten = 0;
+		Roster roster = new Roster(destDir);
         File dir = new File(destDir);
 		
         // create output directory if it doesn't exist
@@ -153,6 +251,9 @@ public class Script {
 		
         //buffer for read and write data to file
         byte[] buffer = new byte[1024];
+		NamingScheme.ParsedName parsed = new NamingScheme.ParsedName();
+		UnzipJournal journal = UnzipJournal.open(zipFilePath, destDir);
+		boolean complete = true;
 		
         try {
 			// Creates stream for reading the zip entries while unzipping
@@ -162,35 +263,79 @@ public class Script {
 			
 			// For each entry
             while(ze != null){
-				// Rename the file. eg, 'c3220929_CoverSheet'
-                String fileName = ze.getName();
-				fileName = fileName.substring(fileName.indexOf("_c")+1, fileName.length());
+				// Folder entries (eg, 'Gradebook/' or Moodle's '..._file_/') are made as their files are written
+				if (ze.isDirectory()) {
+					ze = zis.getNextEntry();
+					continue;
+				}
 				
-				// removes the 'Assignment1_' etc prefixes
-				String removedPrefix = fileName.substring(fileName.indexOf("_c")+1, fileName.length());
+				// Rename the file. eg, 'c3220929_CoverSheet'. The naming is worked out from the first file.
+				if (naming == null) naming = NamingScheme.detect(ze.getName());
+				naming.read(ze.getName(), parsed);
+                String fileName = parsed.sortedFileName();
 				
-				// Only gets the student number and creates a folder
-				String studentNo = removedPrefix.substring(0, removedPrefix.indexOf("_"));
-				File studentFolder = new File(destDir + "\\" + studentNo);
-				if(!studentFolder.exists()) studentFolder.mkdirs();
+				// Only gets the student number. Their folder is made the first time they are seen.
+				Roster.Student student = roster.student(parsed);
+				File studentFolder = student.folder;
                 File newFile = new File(studentFolder + File.separator + fileName);
-				System.out.println("Unzipping to "+newFile.getAbsolutePath());
-                new File(newFile.getParent()).mkdirs();
+				Metrics.verbose("Unzipping to "+newFile.getAbsolutePath());
+				if (fileName.indexOf('/') >= 0) newFile.getParentFile().mkdirs();
+				long bytesBefore = bytesWritten;
+				long entryStart = System.nanoTime();
 				
-				if(!listOfStudentFolders.contains(studentFolder)) {
-					listOfStudentFolders.add(studentFolder);
+				// A student's own archive is opened straight from the Gradebook into their attempt folder
+				boolean written = true;
+				InputStream source = zis;
+				if (NestedUnzip.isNestedZip(fileName, nestedDepth)) {
+					try {
+						NestedUnzip.Archive archive = NestedUnzip.open(zis);
+						if (archive.canExtract()) {
+							bytesWritten += NestedUnzip.extract(archive, fileName, new File(studentFolder, NestedUnzip.ATTEMPT_FOLDER), nestedDepth, duplicates, student);
+							Metrics.phase(Metrics.Phase.NESTED, entryStart);
+							source = null;
+						}
+						else {
+							// Saved as it is, from the bytes already read to tell what it is
+							NestedUnzip.unopened(student, fileName, archive.reason());
+							source = archive.in;
+						}
+					}
+					catch (IOException e) {
+						Metrics.error();
+						written = complete = false;
+						source = null;
+						NestedUnzip.unopened(student, fileName, e.getMessage());
+						System.out.println(fileName + " could not be unzipped ..... " + e.getMessage());
+					}
 				}
+				if (source != null) {
+					// The student's details are read from their Info.txt as it is written
+					SubmissionInfo info = SubmissionInfo.isInfoFile(fileName) ? new SubmissionInfo() : null;
+					DuplicateIndex.Hasher hasher = duplicates != null ? duplicates.hasher(fileName) : null;
+					
+					// Outputstream and buffer
+					FileOutputStream fos = new FileOutputStream(newFile);
+					int len;
+					while ((len = source.read(buffer)) > 0) {
+						fos.write(buffer, 0, len);
+						if (info != null) info.update(buffer, 0, len);
+						if (hasher != null) hasher.update(buffer, 0, len);
+						bytesWritten += len;
+					}
+					fos.close();
+					if (info != null) student.info = info.finish();
+					if (hasher != null) duplicates.add(hasher, student.studentNo, fileName);
+				}
+				entriesWritten++;
+				Metrics.entry(bytesWritten - bytesBefore, entryStart);
 				
-				// Outputstream and buffer
-                FileOutputStream fos = new FileOutputStream(newFile);
-                int len;
-                while ((len = zis.read(buffer)) > 0) {
-					fos.write(buffer, 0, len);
-                }
-				
-				// Close zip entry
-                fos.close();
+				// Close zip entry. Its CRC (and size, if the zip streamed it) is only known once it has been read to the end.
                 zis.closeEntry();
+				
+				// The entry's own size, as in the central directory, so it matches the other unzips
+				// (not what was written, which for a student zip is everything unzipped from it)
+				roster.add(student, ze.getSize());
+				if (written) journal.record(ze.getName(), ze.getCrc(), -1);
                 ze = zis.getNextEntry();
             }
             //close last ZipEntry
@@ -199,17 +344,54 @@ public class Script {
             fis.close();
         } 
 		catch (IOException e) {
+			Metrics.error();
+			complete = false;
             e.printStackTrace();
         }
-		return listOfStudentFolders;
+		journal.finish(complete);
+		if (!complete) roster.failed();
+		if (duplicates != null) duplicates.writeReport(destDir);
+		outputThroughput("Sequential unzip", entriesWritten, bytesWritten, start);
+		return roster;
     }
 	
+	/**
+	* --------------------------------------------------------------------
+	* Gets where a Gradebook zip is unzipped to, eg, 'Gradebook.zip' -> 'Gradebook'
+	* --------------------------------------------------------------------
+	*/
+	static String unzipDestination(String zipFilePath) {
+		return zipFilePath.substring(0, zipFilePath.toLowerCase().lastIndexOf(".zip"));
+	}
+	
+	/**
+	* --------------------------------------------------------------------
+	* Gets the folder that a student's files are sorted into.
+	* --------------------------------------------------------------------
+	*/
+	static File studentFolder(String destDir, String studentNo) {
+		return new File(destDir, studentNo);
+	}
+	
+	/**
+	* --------------------------------------------------------------------
+	* Prints how long an unzip took and how fast it wrote, so the
+	* sequential and parallel unzips can be compared.
+	* --------------------------------------------------------------------
+	*/
+	static void outputThroughput(String label, int entries, long bytes, long startNanos) {
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		double megabytesPerSecond = seconds > 0 ? bytes / seconds / (1024 * 1024) : 0;
+		System.out.println(String.format("%s: %d files, %d bytes in %.3f s (%.1f MB/s)",
+			label, entries, bytes, seconds, megabytesPerSecond));
+	}
+	
 	/**
 	* --------------------------------------------------------------------
 	* Copies the feedback template to all student folders.
 	* --------------------------------------------------------------------
 	*/
-	private void copyFeedback(String sourcePath, String destination)
+	static void copyFeedback(String sourcePath, String destination)
 	{
 		// Uses the copy method to just copy the file to the new folder
 		try { 	
@@ -217,6 +399,7 @@ public class Script {
 		}
 		// In case the folder cannot be copied. For example, if the folder already exists.
 		catch(Exception e) {
+			Metrics.error();
 			System.out.println("Could not copy the specs file in: " + destination + " ..... Check if the folder already exists.");
 		}
 	}
@@ -0,0 +1,212 @@
+/**
+* --------------------------------------------------------------------
+* Pack mode: instead of a folder of loose files for every student, each
+* student gets one zip ('c3220929.zip') holding their sorted files and
+* the feedback sheet. A few large files sync over a VPN far faster than
+* thousands of small ones.
+*
+* Entries are copied into the student zips exactly as they are stored in
+* the Gradebook, so nothing is inflated or deflated again. Only Info.txt
+* is read, for the roster (and for the feedback sheet, if it has
+* placeholders to fill in - see FeedbackRenderer). A student's own zip is
+* packed as it is.
+* Students are written in parallel, one student per job.
+* --------------------------------------------------------------------
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StudentPacker {
+
+	static final String PACK_EXTENSION = ".zip";
+
+	private final int threads;
+	private final NamingScheme naming;
+	private final String template;
+
+	// Only these students are packed (null for all of them)
+	private final Set<String> students;
+
+	// Totals for the throughput report
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicInteger entriesWritten = new AtomicInteger();
+
+	/**
+	* --------------------------------------------------------------------
+	* Entries for one student, with the names they are given in the student's zip.
+	* --------------------------------------------------------------------
+	*/
+	private static final class Pack {
+		final Roster.Student student;
+		final ArrayList<ZipIndex.Entry> entries = new ArrayList<ZipIndex.Entry>();
+		final ArrayList<String> names = new ArrayList<String>();
+
+		Pack(Roster.Student student)
+		{
+			this.student = student;
+		}
+	}
+
+	public StudentPacker(Options options)
+	{
+		this.threads = options.threads > 0 ? options.threads : Runtime.getRuntime().availableProcessors();
+		this.naming = options.naming;
+		this.template = options.template;
+		this.students = options.students;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Packs the Gradebook into one zip per student in destDir, with the
+	* feedback sheet (if there is one) in each, and returns the roster.
+	* --------------------------------------------------------------------
+	*/
+	public Roster pack(String zipFilePath, String destDir)
+	{
+		long start = System.nanoTime();
+		Roster roster = new Roster(destDir, true);
+		new File(destDir).mkdirs();
+
+		try (ZipIndex zip = new ZipIndex(new File(zipFilePath))) {
+			Map<Roster.Student, Pack> packs = group(zip, roster);
+			FeedbackRenderer renderer = template != null ? FeedbackRenderer.load(template) : null;
+			ZipWriter.Prepared feedback = renderer == null ? feedback() : null;
+
+			ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, packs.size())));
+			try {
+				for (Pack pack : packs.values()) {
+					Metrics.expect(pack.entries.size());
+					workers.execute(() -> write(zip, pack, feedback, renderer, roster));
+				}
+				workers.shutdown();
+				workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			finally {
+				workers.shutdownNow();
+				if (renderer != null) renderer.close();
+			}
+		}
+		catch (IOException e) {
+			Metrics.error();
+			roster.failed();
+			e.printStackTrace();
+		}
+
+		Script.outputThroughput("Packed " + roster.size() + " student zips", entriesWritten.get(), bytesWritten.get(), start);
+		return roster;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Sorts the Gradebook's entries by student, in the order they are in the zip.
+	* --------------------------------------------------------------------
+	*/
+	private Map<Roster.Student, Pack> group(ZipIndex zip, Roster roster)
+	{
+		LinkedHashMap<Roster.Student, Pack> packs = new LinkedHashMap<Roster.Student, Pack>();
+		NamingScheme scheme = naming;
+		NamingScheme.ParsedName parsed = new NamingScheme.ParsedName();
+
+		for (ZipIndex.Entry ze : zip.entries()) {
+			if (ze.isDirectory()) continue;
+			if (scheme == null) scheme = NamingScheme.detect(ze.name);
+			scheme.read(ze.name, parsed);
+			if (students != null && !students.contains(parsed.studentNo())) continue;
+
+			Roster.Student student = roster.student(parsed);
+			roster.add(student, ze.size);
+			Pack pack = packs.get(student);
+			if (pack == null) {
+				pack = new Pack(student);
+				packs.put(student, pack);
+			}
+			pack.entries.add(ze);
+			pack.names.add(parsed.sortedFileName());
+		}
+		return packs;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Reads and prepares the feedback sheet once for every student zip.
+	* Returns null if there is no feedback sheet.
+	* --------------------------------------------------------------------
+	*/
+	private ZipWriter.Prepared feedback()
+	{
+		if (template == null) return null;
+		File file = new File(template);
+		try {
+			return ZipWriter.prepare(file.getName(), Files.readAllBytes(file.toPath()));
+		}
+		catch (IOException e) {
+			Metrics.error();
+			System.out.println("Could not read the feedback sheet " + template + ", so the student zips will not have it ..... " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Writes one student's zip. Runs on a worker thread. The feedback sheet
+	* is either the same for everyone, or filled in by the renderer.
+	* --------------------------------------------------------------------
+	*/
+	private void write(ZipIndex zip, Pack pack, ZipWriter.Prepared feedback, FeedbackRenderer renderer, Roster roster)
+	{
+		Roster.Student student = pack.student;
+		Metrics.verbose("Packing " + student.folder.getAbsolutePath());
+		try (ZipWriter writer = new ZipWriter(student.folder)) {
+			List<ZipIndex.Entry> entries = pack.entries;
+			for (int i = 0; i < entries.size(); i++) {
+				long start = System.nanoTime();
+				ZipIndex.Entry ze = entries.get(i);
+				String name = pack.names.get(i);
+				writer.copy(zip, ze, name);
+				if (SubmissionInfo.isInfoFile(name)) student.info = info(zip, ze);
+
+				bytesWritten.addAndGet(ze.compressedSize);
+				entriesWritten.incrementAndGet();
+				Metrics.entry(ze.compressedSize, start);
+			}
+			if (feedback != null) writer.add(feedback);
+			if (renderer != null) writer.add(renderer.prepare(new File(template).getName(), student, student.info));
+		}
+		catch (IOException e) {
+			Metrics.error();
+			roster.failed();
+			System.out.println("Could not pack " + student.folder.getAbsolutePath() + " ..... " + e.getMessage());
+		}
+	}
+
+	// Reads a student's details from their Info.txt in the Gradebook
+	private static SubmissionInfo info(ZipIndex zip, ZipIndex.Entry ze)
+	{
+		SubmissionInfo info = new SubmissionInfo();
+		byte[] buffer = new byte[4096];
+		try (InputStream in = zip.inputStream(ze, buffer.length)) {
+			int len;
+			while ((len = in.read(buffer)) > 0) info.update(buffer, 0, len);
+		}
+		catch (IOException e) {
+			System.out.println("Could not read " + ze.name + " ..... " + e.getMessage());
+		}
+		return info.finish();
+	}
+}
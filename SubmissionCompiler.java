@@ -0,0 +1,338 @@
+/**
+* --------------------------------------------------------------------
+* Compiles each student's Java files after sorting, so build failures are
+* known before marking starts, without running javac by hand in every
+* folder (and starting a JVM for each one).
+*
+* The compiler runs inside the script's own JVM, on a pool of worker
+* threads, one student per job. Each worker keeps its file manager from
+* one student to the next (they are not thread safe, so they are not
+* shared between workers at the same time), so the JDK's own classes are
+* only opened once per worker.
+*
+* Sorted files are named 'c3220929_Store.java', which javac would reject
+* for a 'public class Store', so each file is given to the compiler as if
+* it were called 'Store.java'. Classes go into a 'classes' folder in the
+* student's folder. Each student's errors and warnings are saved in their
+* folder ('compile.txt') and a summary of every student ('compile.csv') in
+* the sorted folder.
+*
+* Annotation processors are turned off, so no student code is run.
+* --------------------------------------------------------------------
+*/
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.ForwardingJavaFileObject;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+public class SubmissionCompiler {
+
+	static final String CLASSES_FOLDER = "classes";
+	static final String LOG_NAME = "compile.txt";
+	static final String SUMMARY_NAME = "compile.csv";
+
+	// -proc:none: annotation processors would be student code running in the script's JVM
+	private static final List<String> COMPILER_OPTIONS = Arrays.asList("-proc:none", "-g");
+
+	/**
+	* --------------------------------------------------------------------
+	* How one student's compile went.
+	* result: ok, failed, no java (nothing to compile) or error (the compiler itself failed)
+	* --------------------------------------------------------------------
+	*/
+	static final class Result {
+		final Roster.Student student;
+		String result = "ok";
+		int sources = 0, errors = 0, warnings = 0;
+		long nanos = 0;
+		String firstError = "";
+
+		Result(Roster.Student student)
+		{
+			this.student = student;
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* A student's source file, given to the compiler under the name it had
+	* before it was sorted (without 'c3220929_' in front).
+	* --------------------------------------------------------------------
+	*/
+	private static final class SourceFile extends ForwardingJavaFileObject<JavaFileObject> {
+		final String simpleName, path;
+
+		SourceFile(JavaFileObject file, String simpleName, String path)
+		{
+			super(file);
+			this.simpleName = simpleName;
+			this.path = path;
+		}
+
+		@Override
+		public boolean isNameCompatible(String simpleName, JavaFileObject.Kind kind)
+		{
+			return kind == JavaFileObject.Kind.SOURCE && this.simpleName.equals(simpleName);
+		}
+	}
+
+	private final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+	private final int threads;
+
+	// File managers the workers take and give back (see BufferPool)
+	private final ConcurrentLinkedQueue<StandardJavaFileManager> fileManagers = new ConcurrentLinkedQueue<StandardJavaFileManager>();
+
+	public SubmissionCompiler(Options options)
+	{
+		this.threads = options.threads > 0 ? options.threads : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Compiles every student in the roster and saves the summary in its
+	* sorted folder. Returns the results, or null if there is no compiler
+	* (the script is being run by a JRE rather than a JDK).
+	* --------------------------------------------------------------------
+	*/
+	public List<Result> compile(Roster roster)
+	{
+		if (compiler == null) {
+			System.out.println("Could not compile the submissions ..... Java's compiler was not found. Run the script with a JDK, not a JRE.");
+			return null;
+		}
+		long start = System.nanoTime();
+		Collection<Roster.Student> students = roster.students();
+
+		ArrayList<Future<Result>> jobs = new ArrayList<Future<Result>>(students.size());
+		ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, students.size())));
+		for (Roster.Student student : students) jobs.add(workers.submit(() -> compile(student)));
+		workers.shutdown();
+
+		ArrayList<Result> results = new ArrayList<Result>(jobs.size());
+		for (Future<Result> job : jobs) {
+			try {
+				results.add(job.get());
+			}
+			catch (Exception e) {
+				Metrics.error();
+				System.out.println("Could not compile a submission ..... " + e);
+			}
+		}
+		close();
+
+		save(results, new File(roster.destDir(), SUMMARY_NAME));
+		report(results, start);
+		Metrics.phase(Metrics.Phase.COMPILE, start);
+		return results;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Compiles one student's folder. Runs on a worker thread.
+	* --------------------------------------------------------------------
+	*/
+	Result compile(Roster.Student student)
+	{
+		long start = System.nanoTime();
+		Result result = new Result(student);
+		ArrayList<File> files = new ArrayList<File>();
+		sources(student.folder, files);
+		result.sources = files.size();
+		if (files.isEmpty()) {
+			result.result = "no java";
+			return result;
+		}
+		Metrics.verbose("Compiling " + student.folder.getAbsolutePath());
+
+		StandardJavaFileManager fileManager = null;
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+		StringWriter output = new StringWriter();
+		try {
+			fileManager = take();
+			File classes = new File(student.folder, CLASSES_FOLDER);
+			classes.mkdirs();
+			fileManager.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singletonList(classes));
+
+			ArrayList<JavaFileObject> units = new ArrayList<JavaFileObject>(files.size());
+			for (File file : files) {
+				JavaFileObject source = fileManager.getJavaFileObjects(file).iterator().next();
+				units.add(new SourceFile(source, simpleName(file, student.studentNo), relativePath(student.folder, file)));
+			}
+
+			Boolean compiled = compiler.getTask(output, fileManager, diagnostics, COMPILER_OPTIONS, null, units).call();
+			if (!Boolean.TRUE.equals(compiled)) result.result = "failed";
+		}
+		catch (IOException | RuntimeException e) {
+			result.result = "error";
+			result.firstError = e.toString();
+			Metrics.error();
+		}
+		finally {
+			give(fileManager);
+		}
+
+		saveLog(student, result, diagnostics.getDiagnostics(), output.toString());
+		result.nanos = System.nanoTime() - start;
+		return result;
+	}
+
+	// Finds every .java file in a folder and the folders in it (but not 'classes', or Mac '._' files)
+	private static void sources(File folder, List<File> sources)
+	{
+		File[] files = folder.listFiles();
+		if (files == null) return;
+		Arrays.sort(files);
+		for (File file : files) {
+			String name = file.getName();
+			if (file.isDirectory()) {
+				if (!name.equals(CLASSES_FOLDER) && !name.equals("__MACOSX")) sources(file, sources);
+			}
+			else if (name.endsWith(".java") && !name.startsWith("._")) {
+				sources.add(file);
+			}
+		}
+	}
+
+	// 'c3220929_Store.java' -> 'Store'
+	private static String simpleName(File file, String studentNo)
+	{
+		String name = file.getName();
+		if (name.startsWith(studentNo + "_")) name = name.substring(studentNo.length() + 1);
+		return name.substring(0, name.length() - ".java".length());
+	}
+
+	private static String relativePath(File folder, File file)
+	{
+		return folder.toPath().relativize(file.toPath()).toString();
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Saves a student's errors and warnings in their folder, eg,
+	* 'c3220929_Store.java:12: error: ';' expected', and counts them.
+	* An old log is removed if there is nothing to say this time.
+	* --------------------------------------------------------------------
+	*/
+	private static void saveLog(Roster.Student student, Result result, List<Diagnostic<? extends JavaFileObject>> diagnostics, String output)
+	{
+		StringBuilder log = new StringBuilder();
+		for (Diagnostic<? extends JavaFileObject> d : diagnostics) {
+			String kind;
+			if (d.getKind() == Diagnostic.Kind.ERROR) {
+				kind = "error";
+				result.errors++;
+			}
+			else if (d.getKind() == Diagnostic.Kind.WARNING || d.getKind() == Diagnostic.Kind.MANDATORY_WARNING) {
+				kind = "warning";
+				result.warnings++;
+			}
+			else {
+				kind = "note";
+			}
+
+			String where = d.getSource() instanceof SourceFile ? ((SourceFile) d.getSource()).path : d.getSource() != null ? d.getSource().getName() : "";
+			String line = (where.equals("") ? "" : where + (d.getLineNumber() > 0 ? ":" + d.getLineNumber() : "") + ": ")
+				+ kind + ": " + d.getMessage(Locale.ROOT);
+			if (kind.equals("error") && result.firstError.equals("")) result.firstError = line.split("\n", 2)[0];
+			log.append(line).append(System.lineSeparator());
+		}
+		log.append(output);
+
+		File file = new File(student.folder, LOG_NAME);
+		if (log.length() == 0) {
+			file.delete();
+			return;
+		}
+		try (Writer writer = new FileWriter(file)) {
+			writer.write(log.toString());
+		}
+		catch (IOException e) {
+			System.out.println("Could not save " + file + " ..... " + e.getMessage());
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Saves 'compile.csv': one line per student with how their compile went.
+	* --------------------------------------------------------------------
+	*/
+	private static void save(List<Result> results, File csv)
+	{
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(csv))) {
+			writer.write("student_no,result,sources,errors,warnings,seconds,first_error");
+			writer.newLine();
+			for (Result r : results) {
+				writer.write(Roster.csv(r.student.studentNo) + "," + r.result + "," + r.sources + "," + r.errors + "," + r.warnings + ","
+					+ String.format(Locale.ROOT, "%.3f", r.nanos / 1e9) + "," + Roster.csv(r.firstError));
+				writer.newLine();
+			}
+		}
+		catch (IOException e) {
+			System.out.println("Could not save " + csv + " ..... " + e.getMessage());
+		}
+	}
+
+	private static void report(List<Result> results, long startNanos)
+	{
+		int ok = 0, failed = 0, none = 0;
+		for (Result r : results) {
+			if (r.result.equals("ok")) ok++;
+			else if (r.result.equals("no java")) none++;
+			else failed++;
+		}
+		System.out.println(String.format("Compiled %d students: %d ok, %d failed, %d without Java files in %.3f s. See %s",
+			results.size(), ok, failed, none, (System.nanoTime() - startNanos) / 1e9, SUMMARY_NAME));
+	}
+
+	private StandardJavaFileManager take() throws IOException
+	{
+		StandardJavaFileManager fileManager = fileManagers.poll();
+		if (fileManager != null) return fileManager;
+
+		// Only the JDK's own classes: no source path, and no class path (which would be the script's own classes)
+		fileManager = compiler.getStandardFileManager(null, Locale.ROOT, null);
+		fileManager.setLocation(StandardLocation.SOURCE_PATH, Collections.<File>emptyList());
+		fileManager.setLocation(StandardLocation.CLASS_PATH, Collections.<File>emptyList());
+		return fileManager;
+	}
+
+	private void give(StandardJavaFileManager fileManager)
+	{
+		if (fileManager != null) fileManagers.add(fileManager);
+	}
+
+	// Closes the file managers (and the JDK files they have open). Call once every worker has finished.
+	private void close()
+	{
+		StandardJavaFileManager fileManager;
+		while ((fileManager = fileManagers.poll()) != null) {
+			try {
+				fileManager.close();
+			}
+			catch (IOException e) {
+				// Nothing left to do with it
+			}
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/**
+* --------------------------------------------------------------------
+* Reads a student's '_Info.txt' while it is being unzipped, so it never
+* has to be read again from disk. The bytes are given to update() as they
+* are written, and each 'Key: value' line is picked out as it ends, eg,
+*
+*		Name: Jessica Javon (c3220929)
+*		Assignment: Assignment 1
+*		Date Submitted: Saturday, 3 April 2021 7:35:12 PM AEDT
+*		Current Grade: Needs Grading
+*
+* Older downloads use 'Submission Date' and 'Due Date' instead.
+* Lines that are not a known field are skipped.
+* --------------------------------------------------------------------
+*/
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+public class SubmissionInfo {
+
+	static final String INFO_SUFFIX = "_Info.txt";
+
+	// Longest line kept. Anything after this on a line is ignored.
+	private static final int MAX_LINE = 4096;
+
+	String name = "", studentNo = "", assignment = "", submitted = "", due = "", grade = "", attempt = "";
+
+	// The line being read
+	private byte[] line = new byte[256];
+	private int length = 0;
+
+	/**
+	* --------------------------------------------------------------------
+	* Whether a sorted file is a student's Info.txt.
+	* --------------------------------------------------------------------
+	*/
+	static boolean isInfoFile(String fileName)
+	{
+		return fileName.endsWith(INFO_SUFFIX);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Reads the next bytes of the file.
+	* --------------------------------------------------------------------
+	*/
+	void update(byte[] bytes, int offset, int count)
+	{
+		for (int i = offset; i < offset + count; i++) {
+			byte b = bytes[i];
+			if (b == '\n') {
+				endLine();
+			}
+			else if (b != '\r' && length < MAX_LINE) {
+				if (length == line.length) line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE));
+				line[length++] = b;
+			}
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Reads the last line (the file may not end with a new line).
+	* --------------------------------------------------------------------
+	*/
+	SubmissionInfo finish()
+	{
+		endLine();
+		line = null;
+		return this;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Reads an Info.txt that is already on disk, eg, one that was not
+	* unzipped again when re-syncing.
+	* --------------------------------------------------------------------
+	*/
+	static SubmissionInfo read(File infoFile) throws IOException
+	{
+		SubmissionInfo info = new SubmissionInfo();
+		byte[] buffer = new byte[4096];
+		try (InputStream in = new FileInputStream(infoFile)) {
+			int len;
+			while ((len = in.read(buffer)) > 0) info.update(buffer, 0, len);
+		}
+		return info.finish();
+	}
+
+	private void endLine()
+	{
+		if (length == 0) return;
+		String text = new String(line, 0, length, StandardCharsets.UTF_8).trim();
+		length = 0;
+
+		int colon = text.indexOf(':');
+		if (colon <= 0) return;
+		field(text.substring(0, colon).trim().toLowerCase(Locale.ROOT), text.substring(colon + 1).trim());
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Keeps the value of a known field. The first value of each field wins.
+	* --------------------------------------------------------------------
+	*/
+	private void field(String key, String value)
+	{
+		if (key.equals("name") && name.equals("")) {
+			// 'Jessica Javon (c3220929)' -> name and student number
+			int open = value.lastIndexOf('('), close = value.lastIndexOf(')');
+			if (open >= 0 && close > open) {
+				studentNo = value.substring(open + 1, close).trim();
+				value = value.substring(0, open).trim();
+			}
+			name = value;
+		}
+		else if (key.equals("assignment") && assignment.equals("")) assignment = value;
+		else if ((key.equals("date submitted") || key.equals("submission date")) && submitted.equals("")) submitted = value;
+		else if (key.equals("due date") && due.equals("")) due = value;
+		else if ((key.equals("current grade") || key.equals("current mark")) && grade.equals("")) grade = value;
+		else if (key.startsWith("attempt") && attempt.equals("")) attempt = value;
+	}
+}
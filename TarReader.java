@@ -0,0 +1,256 @@
+/**
+* --------------------------------------------------------------------
+* Streams a tar into a folder (the JDK has no tar reader of its own).
+* A tar is a run of 512 byte blocks: a header block for each file, then
+* its data, padded to a whole block. Two blocks of zeros end it.
+*
+* Reads POSIX (ustar and pax) and GNU tars, which is what tar, 7-Zip and
+* macOS make. Files and folders are written; links, devices and the like
+* are skipped, as they mean nothing in a student's attempt folder.
+* --------------------------------------------------------------------
+*/
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class TarReader {
+
+	static final int BLOCK_SIZE = 512;
+
+	// Longest GNU long name or pax header read (anything longer is not a student's file)
+	private static final int MAX_HEADER_DATA = 64 * 1024;
+
+	/**
+	* --------------------------------------------------------------------
+	* Streams the tar read from 'in' into destDir. Archives in the tar are
+	* opened too (see NestedUnzip.extractEntry). Returns the number of bytes
+	* written.
+	* --------------------------------------------------------------------
+	*/
+	static long extract(InputStream in, File destDir, NestedUnzip.Context context) throws IOException
+	{
+		long bytesWritten = 0;
+		String destPath = destDir.getCanonicalPath() + File.separator;
+		byte[] header = new byte[BLOCK_SIZE];
+
+		// Set by a GNU long name or pax header for the entry after it
+		String nextName = null;
+
+		while (readBlock(in, header)) {
+			if (isZeros(header)) break;
+			if (!checksumMatches(header)) throw new IOException("The tar is corrupt (a header's checksum is wrong)");
+
+			long size = number(header, 124, 12);
+			char type = (char) header[156];
+			String name = nextName != null ? nextName : name(header);
+			nextName = null;
+			if (size < 0) throw new IOException("The tar is corrupt (" + name + " has no size)");
+
+			if (type == 'L') {
+				nextName = trimNul(new String(readData(in, size), StandardCharsets.UTF_8));
+				continue;
+			}
+			if (type == 'x') {
+				nextName = paxPath(readData(in, size));
+				continue;
+			}
+
+			// Only the file's own bytes can be read, and the block padding after them is skipped
+			Entry data = new Entry(in, size);
+			if (type == '0' || type == '\0' || type == '7') {
+				if (!name.endsWith("/")) bytesWritten += NestedUnzip.extractEntry(data, name, destDir, destPath, context);
+			}
+			else if (type == '5') {
+				File folder = new File(destDir, name);
+				if (folder.getCanonicalPath().startsWith(destPath)) folder.mkdirs();
+			}
+			data.skipRest();
+		}
+		return bytesWritten;
+	}
+
+	// Reads a whole block. Returns false at the end of the stream (a tar without its end blocks).
+	private static boolean readBlock(InputStream in, byte[] block) throws IOException
+	{
+		int length = 0, len;
+		while (length < block.length && (len = in.read(block, length, block.length - length)) > 0) length += len;
+		if (length == 0) return false;
+		if (length < block.length) throw new EOFException("The tar ends part way through a header");
+		return true;
+	}
+
+	private static boolean isZeros(byte[] block)
+	{
+		for (byte b : block) {
+			if (b != 0) return false;
+		}
+		return true;
+	}
+
+	// The header's checksum is the sum of its bytes, with the checksum itself counted as spaces
+	private static boolean checksumMatches(byte[] header)
+	{
+		long sum = 0;
+		for (int i = 0; i < header.length; i++) sum += (i >= 148 && i < 156) ? ' ' : (header[i] & 0xff);
+		return sum == number(header, 148, 8);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Reads a number in a header: octal digits, or (for files of 8 GB or
+	* more in GNU tars) big-endian binary flagged by the top bit.
+	* Returns -1 if it is not a number.
+	* --------------------------------------------------------------------
+	*/
+	static long number(byte[] header, int offset, int length)
+	{
+		if ((header[offset] & 0x80) != 0) {
+			long value = header[offset] & 0x7f;
+			for (int i = offset + 1; i < offset + length; i++) value = (value << 8) | (header[i] & 0xff);
+			return value;
+		}
+		long value = 0;
+		boolean digits = false;
+		for (int i = offset; i < offset + length; i++) {
+			byte b = header[i];
+			if (b == 0 || (b == ' ' && digits)) break;
+			if (b == ' ') continue;
+			if (b < '0' || b > '7') return -1;
+			value = value * 8 + (b - '0');
+			digits = true;
+		}
+		return value;
+	}
+
+	// A ustar header splits long names into a prefix (at 345) and a name (at 0)
+	private static String name(byte[] header)
+	{
+		String name = string(header, 0, 100);
+		boolean ustar = header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a' && header[261] == 'r';
+		String prefix = ustar ? string(header, 345, 155) : "";
+		return prefix.isEmpty() ? name : prefix + "/" + name;
+	}
+
+	private static String string(byte[] header, int offset, int length)
+	{
+		int end = offset;
+		while (end < offset + length && header[end] != 0) end++;
+		return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+	}
+
+	private static String trimNul(String s)
+	{
+		int end = s.indexOf('\0');
+		return end >= 0 ? s.substring(0, end) : s;
+	}
+
+	// Reads a GNU long name or pax header, and the padding after it
+	private static byte[] readData(InputStream in, long size) throws IOException
+	{
+		if (size > MAX_HEADER_DATA) throw new IOException("The tar is corrupt (a header is " + size + " bytes)");
+		byte[] data = new byte[(int) size];
+		Entry entry = new Entry(in, size);
+		int length = 0, len;
+		while (length < data.length && (len = entry.read(data, length, data.length - length)) > 0) length += len;
+		entry.skipRest();
+		return data;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Gets the 'path' from a pax header ("<length> path=<name>\n" records),
+	* or null if it does not have one. A record whose length does not fit
+	* (eg, "1 x") means the tar is corrupt.
+	* --------------------------------------------------------------------
+	*/
+	private static String paxPath(byte[] data) throws IOException
+	{
+		int i = 0;
+		while (i < data.length) {
+			int space = i;
+			while (space < data.length && data[space] != ' ') space++;
+			int length;
+			try {
+				length = Integer.parseInt(new String(data, i, space - i, StandardCharsets.US_ASCII));
+			}
+			catch (NumberFormatException e) {
+				length = -1;
+			}
+
+			// The record is the length, a space, the keyword and value, and a newline
+			if (space >= data.length || length < space - i + 2 || i + length > data.length) {
+				throw new IOException("The tar is corrupt (a pax header record is malformed)");
+			}
+			String record = new String(data, space + 1, i + length - space - 2, StandardCharsets.UTF_8);
+			if (record.startsWith("path=")) return record.substring(5);
+			i += length;
+		}
+		return null;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* One entry's data: ends after its size, and skips its block padding
+	* when done. Closing it leaves the tar open.
+	* --------------------------------------------------------------------
+	*/
+	private static final class Entry extends FilterInputStream {
+		private long remaining;
+		private final long padding;
+
+		Entry(InputStream in, long size)
+		{
+			super(in);
+			this.remaining = size;
+			this.padding = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if (remaining <= 0) return -1;
+			int b = in.read();
+			if (b < 0) throw new EOFException("The tar ends part way through a file");
+			remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (remaining <= 0) return -1;
+			int n = in.read(b, off, (int) Math.min(len, remaining));
+			if (n < 0) throw new EOFException("The tar ends part way through a file");
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return (int) Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public void close() {}
+
+		// Skips what was not read and the padding, to the next header
+		void skipRest() throws IOException
+		{
+			long skip = remaining + padding;
+			remaining = 0;
+			while (skip > 0) {
+				long n = in.skip(skip);
+				if (n <= 0) {
+					if (in.read() < 0) throw new EOFException("The tar ends part way through a file");
+					n = 1;
+				}
+				skip -= n;
+			}
+		}
+	}
+}
@@ -0,0 +1,287 @@
+/**
+* --------------------------------------------------------------------
+* Runs the marker's test class against every student's compiled classes
+* (see SubmissionCompiler), instead of starting a JVM by hand for each one.
+*
+* The tests run in a small pool of worker JVMs (see TestWorker), one per
+* thread. Each worker runs one student at a time, each in their own class
+* loader, and is used again for the next student. A student whose test:
+* 		- takes too long (wall clock), or uses too much CPU time
+*		- calls System.exit, or crashes its JVM
+*		- leaves threads running
+* only loses that worker, which is replaced, and never the script itself.
+*
+* The results are saved with the roster's details in 'tests.csv' in the
+* sorted folder, and each student's output in their folder.
+* --------------------------------------------------------------------
+*/
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class TestHarness {
+
+	static final String RESULTS_NAME = "tests.csv";
+
+	// Heap for each worker JVM, so a test that allocates without end cannot take the machine's memory
+	private static final String WORKER_HEAP = "-Xmx256m";
+
+	// Extra wall clock time a test is given over its limit, for the worker to notice and report it first
+	private static final long GRACE_MILLIS = 2000;
+
+	// Written to the queue of a worker's results when its JVM has ended
+	private static final String ENDED = "";
+
+	/**
+	* --------------------------------------------------------------------
+	* How one student's test went.
+	* status: passed, failed, timeout, exited (System.exit or a crash),
+	* not compiled (no classes) or error (the worker could not be started)
+	* --------------------------------------------------------------------
+	*/
+	static final class Result {
+		final Roster.Student student;
+		String status = "", message = "";
+		long millis = 0, cpuMillis = 0;
+
+		Result(Roster.Student student)
+		{
+			this.student = student;
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* One worker JVM, and the results it has written back.
+	* --------------------------------------------------------------------
+	*/
+	private final class Worker {
+		final Process process;
+		final Writer students;
+		final LinkedBlockingQueue<String> results = new LinkedBlockingQueue<String>();
+
+		Worker() throws IOException
+		{
+			ArrayList<String> command = new ArrayList<String>(Arrays.asList(java(), WORKER_HEAP,
+				"-cp", System.getProperty("java.class.path"), "TestWorker", testClass, testPath, Long.toString(limitMillis)));
+			process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.appendTo(FeedbackPlacer.nullFile())).start();
+			students = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+
+			// Reads the results as they come, so a worker that never answers can be timed out
+			Thread reader = new Thread(() -> {
+				try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+					String line;
+					while ((line = in.readLine()) != null) {
+						if (line.startsWith(TestWorker.RESULT)) results.add(line.substring(TestWorker.RESULT.length()));
+					}
+				}
+				catch (IOException e) {
+					// The worker has gone
+				}
+				results.add(ENDED);
+			}, "test-results");
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		void stop()
+		{
+			process.destroyForcibly();
+		}
+	}
+
+	private final String testClass, testPath;
+	private final long limitMillis;
+	private final int workers;
+
+	public TestHarness(Options options)
+	{
+		this.testClass = options.test;
+		this.testPath = new File(options.testPath).getAbsolutePath();
+		this.limitMillis = options.testTimeout * 1000L;
+		this.workers = options.threads > 0 ? options.threads : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Tests every student in the roster and saves the results. compiled
+	* (from SubmissionCompiler, or null) adds how each student's compile went.
+	* --------------------------------------------------------------------
+	*/
+	public List<Result> run(Roster roster, List<SubmissionCompiler.Result> compiled)
+	{
+		long start = System.nanoTime();
+		Map<Roster.Student, SubmissionCompiler.Result> compiles = new HashMap<Roster.Student, SubmissionCompiler.Result>();
+		if (compiled != null) {
+			for (SubmissionCompiler.Result c : compiled) compiles.put(c.student, c);
+		}
+
+		// Students whose compile failed are not tested (their classes would be missing or old)
+		ConcurrentLinkedQueue<Result> queue = new ConcurrentLinkedQueue<Result>();
+		ArrayList<Result> results = new ArrayList<Result>();
+		for (Roster.Student student : roster.students()) {
+			Result result = new Result(student);
+			results.add(result);
+			SubmissionCompiler.Result c = compiles.get(student);
+			if ((c == null || c.result.equals("ok")) && new File(student.folder, SubmissionCompiler.CLASSES_FOLDER).isDirectory()) queue.add(result);
+			else result.status = "not compiled";
+		}
+
+		// Each thread keeps one worker JVM busy until every student has been tested
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(workers, queue.size())));
+		for (int i = 0; i < Math.min(workers, queue.size()); i++) pool.execute(() -> work(queue));
+		pool.shutdown();
+		try {
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		save(roster, results, compiles);
+		report(results, start);
+		Metrics.phase(Metrics.Phase.TEST, start);
+		return results;
+	}
+
+	// Tests students from the queue on one worker, replacing it whenever it has to be
+	private void work(ConcurrentLinkedQueue<Result> queue)
+	{
+		Worker worker = null;
+		Result result;
+		while ((result = queue.poll()) != null) {
+			try {
+				if (worker == null) worker = new Worker();
+				if (!test(worker, result)) {
+					worker.stop();
+					worker = null;
+				}
+			}
+			catch (IOException e) {
+				result.status = "error";
+				result.message = "Could not start a worker JVM: " + e.getMessage();
+				Metrics.error();
+				if (worker != null) worker.stop();
+				worker = null;
+			}
+		}
+		if (worker != null) worker.stop();
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Tests one student. Returns false if the worker cannot be used again.
+	* --------------------------------------------------------------------
+	*/
+	private boolean test(Worker worker, Result result) throws IOException
+	{
+		Roster.Student student = result.student;
+		Metrics.verbose("Testing " + student.folder.getAbsolutePath());
+		long start = System.nanoTime();
+
+		worker.students.write(student.studentNo + "\t" + student.folder.getAbsolutePath() + "\t"
+			+ new File(student.folder, SubmissionCompiler.CLASSES_FOLDER).getAbsolutePath() + "\n");
+		worker.students.flush();
+
+		String line;
+		try {
+			line = worker.results.poll(limitMillis + GRACE_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			line = null;
+		}
+		result.millis = (System.nanoTime() - start) / 1000000L;
+
+		if (line == null) {
+			result.status = "timeout";
+			result.message = "took more than " + limitMillis / 1000.0 + " s";
+			return false;
+		}
+		if (line.equals(ENDED)) {
+			result.status = "exited";
+			result.message = exitMessage(worker);
+			return false;
+		}
+
+		String[] fields = line.split("\t", 4);
+		result.status = fields[0];
+		result.cpuMillis = Long.parseLong(fields[1]);
+		result.message = fields.length > 3 ? fields[3] : "";
+
+		// The worker stops itself after a timeout, or when a test leaves threads running
+		return fields[2].equals("next");
+	}
+
+	private static String exitMessage(Worker worker)
+	{
+		try {
+			if (worker.process.waitFor(1, TimeUnit.SECONDS)) return "the test ended its JVM (exit code " + worker.process.exitValue() + ")";
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return "the test ended its JVM";
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Saves 'tests.csv': one line per student, with their details from the
+	* roster, how their compile went and how their test went.
+	* --------------------------------------------------------------------
+	*/
+	private static void save(Roster roster, List<Result> results, Map<Roster.Student, SubmissionCompiler.Result> compiles)
+	{
+		File csv = new File(roster.destDir(), RESULTS_NAME);
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(csv))) {
+			writer.write("student_no,name,submitted,files,compile,compile_errors,test,seconds,cpu_seconds,message");
+			writer.newLine();
+			for (Result r : results) {
+				SubmissionInfo info = Roster.info(r.student);
+				SubmissionCompiler.Result c = compiles.get(r.student);
+				writer.write(Roster.csv(r.student.studentNo) + "," + Roster.csv(info.name) + "," + Roster.csv(info.submitted) + ","
+					+ r.student.entries + "," + (c != null ? c.result + "," + c.errors : ",") + "," + r.status + ","
+					+ String.format(Locale.ROOT, "%.3f,%.3f", r.millis / 1000.0, r.cpuMillis / 1000.0) + "," + Roster.csv(r.message));
+				writer.newLine();
+			}
+		}
+		catch (IOException e) {
+			System.out.println("Could not save " + csv + " ..... " + e.getMessage());
+		}
+	}
+
+	private static void report(List<Result> results, long startNanos)
+	{
+		HashMap<String, Integer> counts = new HashMap<String, Integer>();
+		for (Result r : results) counts.merge(r.status, 1, Integer::sum);
+		StringBuilder summary = new StringBuilder();
+		for (String status : new String[] { "passed", "failed", "timeout", "exited", "not compiled", "error" }) {
+			if (counts.containsKey(status)) summary.append(summary.length() > 0 ? ", " : "").append(counts.get(status)).append(" ").append(status);
+		}
+		System.out.println(String.format("Tested %d students: %s in %.3f s. See %s",
+			results.size(), summary, (System.nanoTime() - startNanos) / 1e9, RESULTS_NAME));
+	}
+
+	private static String java()
+	{
+		return new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+	}
+}
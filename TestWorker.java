@@ -0,0 +1,218 @@
+/**
+* --------------------------------------------------------------------
+* A worker JVM started by TestHarness. It runs the marker's test class
+* against one student at a time, for as many students as it is given,
+* so a JVM is not started for every student.
+*
+* Each line read from stdin is one student: their number, their folder
+* and their classes folder (separated by tabs). For each one:
+* 		- a new class loader is made with only the student's classes and
+*		  the test classes in it, so nothing is left over from the last student
+*		- the test class's main(String[]) is run, with the student's folder
+*		  and number as its arguments
+*		- everything it prints is saved in 'test-output.txt' in their folder
+*		- a line starting with RESULT is written back with how it went
+*
+* If the test uses more CPU time than it is allowed, or leaves threads
+* running, the worker stops itself and TestHarness starts a new one.
+* --------------------------------------------------------------------
+*/
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+
+public class TestWorker {
+
+	// Starts each line written back to TestHarness, so it can tell them apart from anything a test writes there itself
+	static final String RESULT = "RESULT\t";
+
+	static final String OUTPUT_NAME = "test-output.txt";
+
+	// Most output kept from one student's test
+	private static final int MAX_OUTPUT = 1024 * 1024;
+
+	// How often the test's CPU time is checked
+	private static final long CHECK_MILLIS = 20;
+
+	/**
+	* --------------------------------------------------------------------
+	* Output from one student's test, written to their folder. Anything over
+	* MAX_OUTPUT is dropped (eg, a test printing in an endless loop).
+	* --------------------------------------------------------------------
+	*/
+	private static final class Capture extends OutputStream {
+		private final OutputStream out;
+		private long written = 0;
+
+		Capture(File file) throws IOException
+		{
+			out = new FileOutputStream(file);
+		}
+
+		@Override
+		public synchronized void write(int b) throws IOException
+		{
+			if (written++ < MAX_OUTPUT) out.write(b);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException
+		{
+			if (written < MAX_OUTPUT) out.write(b, off, (int) Math.min(len, MAX_OUTPUT - written));
+			written += len;
+		}
+
+		@Override
+		public synchronized void close() throws IOException
+		{
+			if (written > MAX_OUTPUT) out.write(("\n... " + (written - MAX_OUTPUT) + " more bytes not saved\n").getBytes());
+			out.close();
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* args: the test class, its class path and the CPU time limit in milliseconds.
+	* --------------------------------------------------------------------
+	*/
+	public static void main(String[] args) throws IOException
+	{
+		String testClass = args[0];
+		URL[] testPath = urls(args[1]);
+		long cpuLimitNanos = Long.parseLong(args[2]) * 1000000L;
+
+		// The results go out through the real stdout. System.out and System.err are the student's.
+		PrintStream results = new PrintStream(new FileOutputStream(FileDescriptor.out), true, "UTF-8");
+		PrintStream quiet = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b)
+			{
+			}
+		});
+		System.setOut(quiet);
+		System.setErr(quiet);
+
+		BufferedReader students = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+		String line;
+		while ((line = students.readLine()) != null) {
+			String[] fields = line.split("\t");
+			boolean keepGoing = run(testClass, testPath, cpuLimitNanos, fields[0], new File(fields[1]), new File(fields[2]), results, quiet);
+			if (!keepGoing) Runtime.getRuntime().halt(0);
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Runs the test against one student and writes back the result:
+	* RESULT, status (passed, failed or timeout), CPU milliseconds, whether
+	* this worker carries on (next) or stops (stop), and a message.
+	* Returns false if the worker has to be replaced afterwards.
+	* --------------------------------------------------------------------
+	*/
+	private static boolean run(String testClass, URL[] testPath, long cpuLimitNanos, String studentNo, File folder, File classes,
+		PrintStream results, PrintStream quiet) throws IOException
+	{
+		URL[] urls = new URL[testPath.length + 1];
+		urls[0] = classes.toURI().toURL();
+		System.arraycopy(testPath, 0, urls, 1, testPath.length);
+
+		// Only the JDK's own classes are shared, not the script's (or the last student's)
+		URLClassLoader loader = new URLClassLoader(urls, ClassLoader.getSystemClassLoader().getParent());
+		Capture capture = new Capture(new File(folder, OUTPUT_NAME));
+		PrintStream output = new PrintStream(capture, true);
+		System.setOut(output);
+		System.setErr(output);
+
+		Throwable[] thrown = new Throwable[1];
+		Thread test = new Thread(() -> {
+			try {
+				Method main = Class.forName(testClass, true, loader).getMethod("main", String[].class);
+				main.invoke(null, (Object) new String[] { folder.getPath(), studentNo });
+			}
+			catch (InvocationTargetException e) {
+				thrown[0] = e.getCause();
+				e.getCause().printStackTrace();
+			}
+			catch (Throwable e) {
+				thrown[0] = e;
+				e.printStackTrace();
+			}
+		}, "test-" + studentNo);
+		test.setContextClassLoader(loader);
+		test.setDaemon(true);
+
+		int threadsBefore = Thread.activeCount();
+		long cpuStart = processCpuNanos();
+		test.start();
+		boolean timedOut = false;
+		try {
+			while (test.isAlive()) {
+				test.join(CHECK_MILLIS);
+				if (processCpuNanos() - cpuStart > cpuLimitNanos) {
+					timedOut = true;
+					break;
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			timedOut = true;
+		}
+		long cpuMillis = (processCpuNanos() - cpuStart) / 1000000L;
+
+		System.setOut(quiet);
+		System.setErr(quiet);
+		output.close();
+		loader.close();
+
+		String status, message;
+		if (timedOut) {
+			status = "timeout";
+			message = "used more than " + cpuLimitNanos / 1000000000.0 + " s of CPU time";
+		}
+		else if (thrown[0] != null) {
+			status = "failed";
+			message = thrown[0].toString();
+		}
+		else {
+			status = "passed";
+			message = "";
+		}
+		// Threads the test left running would carry on into the next student
+		boolean keepGoing = !timedOut && Thread.activeCount() <= threadsBefore;
+		results.println(RESULT + status + "\t" + cpuMillis + "\t" + (keepGoing ? "next" : "stop") + "\t"
+			+ message.replace('\t', ' ').replace('\r', ' ').replace('\n', ' '));
+		return keepGoing;
+	}
+
+	// CPU time used by the whole JVM (it only runs one test at a time), or 0 if it cannot be told
+	private static long processCpuNanos()
+	{
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		}
+		return 0;
+	}
+
+	private static URL[] urls(String path) throws IOException
+	{
+		ArrayList<URL> urls = new ArrayList<URL>();
+		for (String part : path.split(File.pathSeparator)) {
+			if (!part.equals("")) urls.add(new File(part).toURI().toURL());
+		}
+		return urls.toArray(new URL[urls.size()]);
+	}
+}
@@ -0,0 +1,185 @@
+/**
+* --------------------------------------------------------------------
+* Lets an unzip that stopped part way (a full disk, a locked file on a
+* network share, the script being killed) carry on where it stopped,
+* instead of everything being deleted and unzipped again.
+*
+* While the Gradebook is unzipped, a journal is kept beside the sorted
+* folder ('Gradebook.journal' next to 'Gradebook'). Each entry is added to
+* it once its file has been written and closed: its name, CRC32 and offset
+* in the zip (-1 when the zip is read as a stream). The journal is synced
+* to disk every few hundred entries (and every few seconds), not after
+* every entry, so it costs next to nothing.
+*
+* The next run on the same zip skips every entry in the journal. A run
+* that finishes deletes it, so a journal is only ever left by a run that
+* did not. The first line records the zip's size and time, so a journal
+* from another download of the Gradebook is not used.
+*
+* Files written in the last few seconds before a power cut may not have
+* reached the disk even though they are in the journal.
+* --------------------------------------------------------------------
+*/
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+public class UnzipJournal {
+
+	static final String JOURNAL_EXTENSION = ".journal";
+
+	// Synced to disk after this many entries, or this long, whichever comes first
+	private static final int SYNC_EVERY = 256;
+	private static final long SYNC_MILLIS = 2000;
+
+	private final File file;
+	private final String header;
+
+	// Entries the last run finished ('name<tab>crc'). Only read once the unzip has started.
+	private final Set<String> done;
+
+	private FileOutputStream out = null;
+	private int recorded = 0, unsynced = 0;
+	private long lastSync = System.currentTimeMillis();
+	private boolean failed = false;
+
+	private UnzipJournal(File file, String header, Set<String> done)
+	{
+		this.file = file;
+		this.header = header;
+		this.done = done;
+	}
+
+	static File journalFile(String destDir)
+	{
+		return new File(destDir + JOURNAL_EXTENSION);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Opens the journal for unzipping a Gradebook into destDir, reading
+	* what the last run finished if it stopped part way through this zip.
+	* --------------------------------------------------------------------
+	*/
+	static UnzipJournal open(String zipFilePath, String destDir)
+	{
+		File zip = new File(zipFilePath);
+		File file = journalFile(destDir);
+		String header = "# zip\t" + zip.length() + "\t" + zip.lastModified();
+		HashSet<String> done = new HashSet<String>();
+		if (!file.isFile()) return new UnzipJournal(file, header, done);
+
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			if (!header.equals(reader.readLine())) {
+				System.out.println("The last unzip into " + destDir + " stopped part way, but the zip has changed since, so it will be unzipped again.");
+				return new UnzipJournal(file, header, done);
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// The last line can be cut short if the machine stopped while it was being written
+				String[] fields = line.split("\t");
+				if (fields.length == 3) done.add(fields[0] + "\t" + fields[1]);
+			}
+		}
+		catch (IOException e) {
+			System.out.println("Could not read " + file + ", so the Gradebook will be unzipped again ..... " + e.getMessage());
+			done.clear();
+		}
+		return new UnzipJournal(file, header, done);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Whether the last run stopped part way, so this run is carrying on from it.
+	* --------------------------------------------------------------------
+	*/
+	boolean resuming()
+	{
+		return !done.isEmpty();
+	}
+
+	int doneBefore()
+	{
+		return done.size();
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Whether an entry was finished by the last run, so it can be skipped.
+	* --------------------------------------------------------------------
+	*/
+	boolean isDone(String name, long crc)
+	{
+		return done.contains(name + "\t" + Long.toHexString(crc));
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Adds an entry whose file has been written and closed.
+	* Called from the unzip's worker threads.
+	* --------------------------------------------------------------------
+	*/
+	synchronized void record(String name, long crc, long offset)
+	{
+		if (failed) return;
+		try {
+			if (out == null) start();
+			out.write((name + "\t" + Long.toHexString(crc) + "\t" + offset + "\n").getBytes(StandardCharsets.UTF_8));
+			recorded++;
+			if (++unsynced >= SYNC_EVERY || System.currentTimeMillis() - lastSync >= SYNC_MILLIS) sync();
+		}
+		catch (IOException e) {
+			// Without the journal a stopped run cannot carry on, but this run can still finish
+			failed = true;
+			System.out.println("Could not write to " + file + ", so a stopped unzip will have to start again ..... " + e.getMessage());
+		}
+	}
+
+	// Starts the journal: a fresh one, or carrying on from the last run's
+	private void start() throws IOException
+	{
+		boolean carryOn = resuming();
+		out = new FileOutputStream(file, carryOn);
+		if (!carryOn) out.write((header + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void sync() throws IOException
+	{
+		out.getFD().sync();
+		unsynced = 0;
+		lastSync = System.currentTimeMillis();
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Ends the journal. If every entry was unzipped it is deleted; if not, it
+	* is kept (synced) so the next run carries on, and a message says so.
+	* --------------------------------------------------------------------
+	*/
+	synchronized void finish(boolean complete)
+	{
+		try {
+			if (out != null) {
+				sync();
+				out.close();
+			}
+		}
+		catch (IOException e) {
+			failed = true;
+		}
+
+		if (complete) {
+			file.delete();
+		}
+		else if (file.exists() && !failed) {
+			System.out.println("The unzip did not finish. Run it again to carry on from where it stopped ("
+				+ (done.size() + recorded) + " files are done).");
+		}
+	}
+}
@@ -0,0 +1,712 @@
+/**
+* --------------------------------------------------------------------
+* Unzips in three stages joined by queues, so a slow drive does not hold
+* up inflating, and slow inflating does not leave the drive idle:
+* 		- read: one thread reads each entry's compressed bytes from the
+*		  Gradebook, in order, in chunks
+*		- inflate: a pool of threads inflates each entry's chunks in order
+*		  (and checks its CRC-32, reads Info.txt files and hashes for the
+*		  duplicate check)
+*		- write: a pool of threads writes the inflated chunks, each at its
+*		  place in its file, so chunks of one file can be written at once
+*
+* Chunks come from two fixed pools (one for compressed bytes, one for
+* inflated bytes), so memory stays the same however big an entry is: a
+* stage that gets ahead waits for a free chunk until the stage after it
+* catches up. Each wait is timed (for a chunk, for a job from the stage
+* before, and the read stage's wait for the next entry), and how full each
+* queue gets is counted, so the report at the end says which stage held
+* the unzip up.
+*
+* A network drive takes a long time to answer each write, but can take
+* many at once, so it gets more writers than a local drive (see
+* isNetworkDrive). Used by ParallelUnzip with --pipeline.
+* --------------------------------------------------------------------
+*/
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+public class UnzipPipeline {
+
+	// Writers for a local drive and for a network drive (unless --write-threads is given)
+	static final int LOCAL_WRITERS = 4, NETWORK_WRITERS = 16;
+
+	// File system types (as Files.getFileStore gives them) of network drives
+	private static final Set<String> NETWORK_FILE_SYSTEMS = new HashSet<String>(Arrays.asList(
+		"nfs", "nfs4", "cifs", "smb", "smbfs", "smb2", "smb3", "afpfs", "webdav", "davfs", "fuse.sshfs", "sshfs", "9p", "ncpfs", "afs"));
+
+	/**
+	* --------------------------------------------------------------------
+	* What is done with an entry once it has been written (or could not be).
+	* Called once, by whichever thread finished it.
+	* --------------------------------------------------------------------
+	*/
+	interface Done {
+		void done(long written, IOException error);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Part of an entry: bytes, and where they go in its file.
+	* --------------------------------------------------------------------
+	*/
+	private static final class Chunk {
+		final byte[] bytes;
+		final ChunkPool pool;
+		int length = 0;
+		long position = 0;
+
+		Chunk(byte[] bytes, ChunkPool pool)
+		{
+			this.bytes = bytes;
+			this.pool = pool;
+		}
+	}
+
+	// Put after an entry's last chunk
+	private static final Chunk END = new Chunk(new byte[0], null);
+
+	/**
+	* --------------------------------------------------------------------
+	* A fixed number of chunks, made as they are first needed. take() waits
+	* for one to be given back once they are all in use, and the time
+	* spent waiting is added to the stage that took it.
+	* --------------------------------------------------------------------
+	*/
+	private static final class ChunkPool {
+		private final ArrayBlockingQueue<Chunk> free;
+		private final int size, most;
+		private int made = 0;
+
+		ChunkPool(int size, int most)
+		{
+			this.size = size;
+			this.most = most;
+			this.free = new ArrayBlockingQueue<Chunk>(most);
+		}
+
+		Chunk take(Stage stage) throws InterruptedException
+		{
+			Chunk chunk = free.poll();
+			if (chunk == null) {
+				synchronized (this) {
+					if (made < most) {
+						made++;
+						chunk = new Chunk(new byte[size], this);
+					}
+				}
+			}
+			if (chunk == null) {
+				long start = System.nanoTime();
+				chunk = free.take();
+				stage.stallNanos.add(System.nanoTime() - start);
+			}
+			chunk.length = 0;
+			return chunk;
+		}
+
+		void give(Chunk chunk)
+		{
+			free.add(chunk);
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Times for one stage, added up over its threads: working, waiting for
+	* the stage before it, and stalled on the stage after it (no free chunks).
+	* The read stage has no stage before it: its wait is the time between
+	* entries, while the next one is named and its folder made.
+	* Also how many jobs were waiting in its queue, each time one was added.
+	* --------------------------------------------------------------------
+	*/
+	static final class Stage {
+		final String name;
+		final int threads;
+		final LongAdder busyNanos = new LongAdder(), waitNanos = new LongAdder(), stallNanos = new LongAdder();
+		private final LongAdder queuedTotal = new LongAdder(), queuedCount = new LongAdder();
+		private final AtomicLong mostQueued = new AtomicLong();
+
+		Stage(String name, int threads)
+		{
+			this.name = name;
+			this.threads = threads;
+		}
+
+		void queued(int depth)
+		{
+			queuedTotal.add(depth);
+			queuedCount.increment();
+			mostQueued.accumulateAndGet(depth, Math::max);
+		}
+
+		// Share of the stage's threads' timed time spent working rather than waiting or stalled
+		double busy()
+		{
+			long busy = busyNanos.sum(), timed = busy + waitNanos.sum() + stallNanos.sum();
+			return timed > 0 ? busy / (double) timed : 0;
+		}
+
+		String report()
+		{
+			long count = queuedCount.sum();
+			return String.format(Locale.ROOT, "  %-8s %2d threads, %3.0f%% busy, waited %.2f s for the stage before, stalled %.2f s on the stage after, queue %.1f average, %d most",
+				name, threads, 100 * busy(), waitNanos.sum() / 1e9, stallNanos.sum() / 1e9,
+				count > 0 ? queuedTotal.sum() / (double) count : 0, mostQueued.get());
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* A stage's job queue. The time its threads spend waiting for a job is
+	* added to the stage.
+	* --------------------------------------------------------------------
+	*/
+	private static final class StageQueue extends LinkedBlockingQueue<Runnable> {
+		private static final long serialVersionUID = 1L;
+		private final transient Stage stage;
+
+		StageQueue(Stage stage)
+		{
+			this.stage = stage;
+		}
+
+		@Override
+		public Runnable take() throws InterruptedException
+		{
+			long start = System.nanoTime();
+			try {
+				return super.take();
+			}
+			finally {
+				stage.waitNanos.add(System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* A stage's threads. timesJobs: add each job's whole time to the stage
+	* as working (the inflate stage times its own work, as it also waits
+	* for chunks part way through an entry).
+	* --------------------------------------------------------------------
+	*/
+	private static final class StagePool extends ThreadPoolExecutor {
+		private final Stage stage;
+		private final boolean timesJobs;
+		private final ThreadLocal<Long> jobStart = new ThreadLocal<Long>();
+
+		StagePool(Stage stage, boolean timesJobs)
+		{
+			super(stage.threads, stage.threads, 0, TimeUnit.NANOSECONDS, new StageQueue(stage));
+			this.stage = stage;
+			this.timesJobs = timesJobs;
+
+			// Started now, so their waits for the first jobs are timed too
+			prestartAllCoreThreads();
+		}
+
+		@Override
+		protected void beforeExecute(Thread thread, Runnable job)
+		{
+			if (timesJobs) jobStart.set(System.nanoTime());
+		}
+
+		@Override
+		protected void afterExecute(Runnable job, Throwable error)
+		{
+			if (timesJobs) stage.busyNanos.add(System.nanoTime() - jobStart.get());
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* One entry on its way through the stages.
+	* --------------------------------------------------------------------
+	*/
+	private static final class Job {
+		final ZipIndex.Entry ze;
+		final File file;
+		final SubmissionInfo info;
+		final DuplicateIndex.Hasher hasher;
+		final Done done;
+		final CRC32 crc = new CRC32();
+
+		// Compressed chunks from the reader, in order, then END
+		final LinkedBlockingQueue<Chunk> chunks = new LinkedBlockingQueue<Chunk>();
+
+		// Chunks still being written, plus one until the entry has all been inflated
+		final AtomicInteger pending = new AtomicInteger(1);
+		long written = 0;
+		volatile IOException error = null;
+		private FileChannel channel = null;
+
+		Job(ZipIndex.Entry ze, File file, SubmissionInfo info, DuplicateIndex.Hasher hasher, Done done)
+		{
+			this.ze = ze;
+			this.file = file;
+			this.info = info;
+			this.hasher = hasher;
+			this.done = done;
+		}
+
+		// The file is made by the first writer to get a chunk of it
+		synchronized FileChannel channel() throws IOException
+		{
+			if (channel == null) channel = new FileOutputStream(file).getChannel();
+			return channel;
+		}
+
+		/**
+		* ----------------------------------------------------------------
+		* Closes the file, and makes it if it is empty. An entry that could
+		* not be unzipped leaves no file: one made part way is deleted.
+		* ----------------------------------------------------------------
+		*/
+		synchronized void close() throws IOException
+		{
+			if (error == null) {
+				channel().close();
+			}
+			else if (channel != null) {
+				channel.close();
+				Files.deleteIfExists(file.toPath());
+			}
+		}
+
+		void fail(IOException e)
+		{
+			if (error == null) error = e;
+		}
+
+		// Adds to the CRC, reads the Info.txt and hashes for the duplicate check, in order, on the inflating thread
+		void update(byte[] bytes, int length)
+		{
+			crc.update(bytes, 0, length);
+			if (info != null) info.update(bytes, 0, length);
+			if (hasher != null) hasher.update(bytes, 0, length);
+		}
+	}
+
+	private final ZipIndex zip;
+	private final ChunkPool compressed, inflated;
+	private final ThreadPoolExecutor inflaters, writers;
+	private final ConcurrentLinkedQueue<Inflater> freeInflaters = new ConcurrentLinkedQueue<Inflater>();
+	private final boolean networkDrive;
+	private final int chunkSize, chunks;
+
+	// When the read thread last left add() (or the pipeline was started). Only used by that thread.
+	private long readIdleSince = System.nanoTime();
+
+	final Stage read, inflate, write;
+
+	// Bytes moved by each write path: transferTo for stored entries, and chunks for the rest
+	private final AtomicLong bytesTransferred = new AtomicLong(), bytesChunked = new AtomicLong();
+
+	/**
+	* --------------------------------------------------------------------
+	* Starts the inflate and write stages for unzipping zip into destDir.
+	* The thread that calls add() is the read stage.
+	* --------------------------------------------------------------------
+	*/
+	UnzipPipeline(ZipIndex zip, String destDir, Options options)
+	{
+		this.zip = zip;
+		this.networkDrive = isNetworkDrive(new File(destDir));
+		int inflateThreads = inflateThreads(options);
+		int writeThreads = writeThreads(options, networkDrive);
+
+		// Half the memory for each pool, but always enough for every inflater to have one of each
+		this.chunkSize = Math.max(options.bufferSize, 4096);
+		this.chunks = Math.max(2 * inflateThreads, (int) ((long) options.pipelineMemory * 1024 * 1024 / chunkSize));
+		this.compressed = new ChunkPool(chunkSize, chunks / 2);
+		this.inflated = new ChunkPool(chunkSize, chunks - chunks / 2);
+
+		this.read = new Stage("read", 1);
+		this.inflate = new Stage("inflate", inflateThreads);
+		this.write = new Stage("write", writeThreads);
+		this.inflaters = new StagePool(inflate, false);
+		this.writers = new StagePool(write, true);
+	}
+
+	private static int inflateThreads(Options options)
+	{
+		return options.threads > 0 ? options.threads : Runtime.getRuntime().availableProcessors();
+	}
+
+	private static int writeThreads(Options options, boolean networkDrive)
+	{
+		return options.writeThreads > 0 ? options.writeThreads : networkDrive ? NETWORK_WRITERS : LOCAL_WRITERS;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* How many threads a pipeline unzipping into destDir uses: the read
+	* thread, the inflaters and the writers.
+	* --------------------------------------------------------------------
+	*/
+	static int threads(Options options, File destDir)
+	{
+		return 1 + inflateThreads(options) + writeThreads(options, isNetworkDrive(destDir));
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* The write stage's threads, for other jobs that are mostly writing
+	* (eg, a student's own zip).
+	* --------------------------------------------------------------------
+	*/
+	ThreadPoolExecutor writers()
+	{
+		return writers;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Unzips an entry to newFile. Reads its compressed bytes on this thread
+	* (waiting for free chunks if the stages after it are behind), and
+	* returns once they have all been read. Stored entries that do not need
+	* reading in Java are copied by the write stage with transferTo.
+	* --------------------------------------------------------------------
+	*/
+	void add(ZipIndex.Entry ze, File newFile, SubmissionInfo info, DuplicateIndex.Hasher hasher, Done done) throws InterruptedException
+	{
+		read.waitNanos.add(System.nanoTime() - readIdleSince);
+		try {
+			addEntry(ze, newFile, info, hasher, done);
+		}
+		finally {
+			readIdleSince = System.nanoTime();
+		}
+	}
+
+	private void addEntry(ZipIndex.Entry ze, File newFile, SubmissionInfo info, DuplicateIndex.Hasher hasher, Done done) throws InterruptedException
+	{
+		if (ze.method == ZipIndex.STORED && !ze.isEncrypted() && info == null && hasher == null) {
+			write.queued(writers.getQueue().size());
+			writers.execute(() -> transfer(ze, newFile, done));
+			return;
+		}
+
+		Job job = new Job(ze, newFile, info, hasher, done);
+		if (ze.isEncrypted()) job.fail(new ZipException(ze.name + " is encrypted"));
+		else if (ze.method != ZipIndex.STORED && ze.method != ZipIndex.DEFLATED) {
+			job.fail(new ZipException(ze.name + " uses compression method " + ze.method + ", which is not supported"));
+		}
+		inflate.queued(inflaters.getQueue().size());
+		inflaters.execute(() -> inflateEntry(job));
+		if (job.error == null) readChunks(job);
+		job.chunks.add(END);
+	}
+
+	// The read stage: the entry's bytes, in chunks, in order
+	private void readChunks(Job job) throws InterruptedException
+	{
+		try {
+			long position = zip.dataOffset(job.ze), end = position + job.ze.compressedSize;
+			while (position < end) {
+				Chunk chunk = compressed.take(read);
+				long readStart = System.nanoTime();
+				ByteBuffer buffer = ByteBuffer.wrap(chunk.bytes, 0, (int) Math.min(chunk.bytes.length, end - position));
+				try {
+					while (buffer.hasRemaining()) {
+						int len = zip.channel().read(buffer, position + buffer.position());
+						if (len < 0) throw new ZipException("Unexpected end of " + job.ze.name);
+					}
+				}
+				catch (IOException e) {
+					compressed.give(chunk);
+					throw e;
+				}
+				chunk.length = buffer.position();
+				position += chunk.length;
+				read.busyNanos.add(System.nanoTime() - readStart);
+				job.chunks.add(chunk);
+			}
+		}
+		catch (IOException e) {
+			job.fail(e);
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* The inflate stage, for one entry. Hands each full chunk of inflated
+	* bytes to the write stage. If anything goes wrong the rest of the
+	* entry's chunks are still taken, so they go back to the pool (unless
+	* its END has already been taken, when there are none left).
+	* --------------------------------------------------------------------
+	*/
+	private void inflateEntry(Job job)
+	{
+		boolean stored = job.ze.method == ZipIndex.STORED;
+		Inflater inflater = stored ? null : takeInflater();
+		Chunk out = null;
+		long position = 0;
+
+		// Set once the entry's END has been taken (and not put back for the padding byte)
+		boolean ended = false;
+		try {
+			boolean padded = false;
+			while (true) {
+				long waitStart = System.nanoTime();
+				Chunk in = job.chunks.take();
+				long workStart = System.nanoTime();
+				inflate.waitNanos.add(workStart - waitStart);
+
+				if (in == END) {
+					ended = true;
+					if (job.error != null || stored || inflater.finished()) break;
+					if (padded) throw new ZipException("Unexpected end of " + job.ze.name);
+
+					// The Inflater can need one byte past the end of the data to finish
+					padded = true;
+					in = new Chunk(new byte[1], null);
+					in.length = 1;
+					job.chunks.add(END);
+					ended = false;
+				}
+				if (job.error != null || (!stored && inflater.finished())) {
+					give(in);
+					continue;
+				}
+				if (stored) {
+					// Already as it is in the file: passed straight on to be written
+					job.update(in.bytes, in.length);
+					in.position = position;
+					position += in.length;
+					writeChunk(job, in);
+					inflate.busyNanos.add(System.nanoTime() - workStart);
+					continue;
+				}
+
+				inflater.setInput(in.bytes, 0, in.length);
+				while (!inflater.needsInput() && !inflater.finished()) {
+					if (out == null) {
+						inflate.busyNanos.add(System.nanoTime() - workStart);
+						out = inflated.take(inflate);
+						workStart = System.nanoTime();
+					}
+					int len = inflater.inflate(out.bytes, out.length, out.bytes.length - out.length);
+					if (len == 0 && !inflater.needsInput() && !inflater.finished()) {
+						throw new ZipException(job.ze.name + " is not a valid deflated entry");
+					}
+					out.length += len;
+					if (out.length == out.bytes.length || (inflater.finished() && out.length > 0)) {
+						job.update(out.bytes, out.length);
+						out.position = position;
+						position += out.length;
+						writeChunk(job, out);
+						out = null;
+					}
+				}
+				// The Inflater is done with the chunk once it needs more input
+				give(in);
+				inflate.busyNanos.add(System.nanoTime() - workStart);
+			}
+		}
+		catch (IOException e) {
+			job.fail(e);
+			if (!ended) drain(job);
+		}
+		catch (DataFormatException e) {
+			job.fail(new ZipException(job.ze.name + " is corrupt ..... " + e.getMessage()));
+			if (!ended) drain(job);
+		}
+		catch (InterruptedException e) {
+			job.fail(new IOException("Stopped before " + job.ze.name + " was unzipped"));
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			if (out != null) inflated.give(out);
+			if (inflater != null) giveInflater(inflater);
+		}
+		if (job.error == null) {
+			try {
+				ParallelUnzip.checkCrc(job.ze, job.crc);
+			}
+			catch (ZipException e) {
+				job.fail(e);
+			}
+		}
+		job.written = position;
+		finish(job);
+	}
+
+	// Gives back the chunks of an entry that could not be inflated, up to its END
+	private void drain(Job job)
+	{
+		try {
+			Chunk in;
+			while ((in = job.chunks.take()) != END) give(in);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void give(Chunk chunk)
+	{
+		if (chunk.pool != null) chunk.pool.give(chunk);
+	}
+
+	// The write stage, for one chunk. Writes go to the chunk's own place in the file.
+	private void writeChunk(Job job, Chunk chunk)
+	{
+		job.pending.incrementAndGet();
+		write.queued(writers.getQueue().size());
+		writers.execute(() -> {
+			try {
+				if (job.error == null) {
+					FileChannel channel = job.channel();
+					ByteBuffer buffer = ByteBuffer.wrap(chunk.bytes, 0, chunk.length);
+					while (buffer.hasRemaining()) channel.write(buffer, chunk.position + buffer.position());
+					bytesChunked.addAndGet(chunk.length);
+				}
+			}
+			catch (IOException e) {
+				job.fail(e);
+			}
+			finally {
+				give(chunk);
+				finish(job);
+			}
+		});
+	}
+
+	// Closes the file once the last of the entry has been written (see Job.close)
+	private void finish(Job job)
+	{
+		if (job.pending.decrementAndGet() > 0) return;
+		try {
+			job.close();
+		}
+		catch (IOException e) {
+			job.fail(e);
+		}
+		job.done.done(job.written, job.error);
+	}
+
+	// The write stage, for a stored entry: copied from the Gradebook by the operating system
+	private void transfer(ZipIndex.Entry ze, File newFile, Done done)
+	{
+		long written = 0;
+		IOException error = null;
+		try (FileOutputStream fos = new FileOutputStream(newFile)) {
+			written = ParallelUnzip.transfer(zip, ze, fos.getChannel());
+			bytesTransferred.addAndGet(written);
+		}
+		catch (IOException e) {
+			error = e;
+			newFile.delete();
+		}
+		done.done(written, error);
+	}
+
+	private Inflater takeInflater()
+	{
+		Inflater inflater = freeInflaters.poll();
+		return inflater != null ? inflater : new Inflater(true);
+	}
+
+	private void giveInflater(Inflater inflater)
+	{
+		inflater.reset();
+		freeInflaters.add(inflater);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Waits for every entry added to be inflated. The write stage then
+	* only has writes left, and takes no more from the inflate stage.
+	* --------------------------------------------------------------------
+	*/
+	void awaitInflated() throws InterruptedException
+	{
+		inflaters.shutdown();
+		inflaters.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Stops every stage, and frees the Inflaters' native memory.
+	* --------------------------------------------------------------------
+	*/
+	void close()
+	{
+		inflaters.shutdownNow();
+		writers.shutdownNow();
+		Inflater inflater;
+		while ((inflater = freeInflaters.poll()) != null) inflater.end();
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Prints each stage's times and queues, and which stage held the unzip up.
+	* --------------------------------------------------------------------
+	*/
+	void report()
+	{
+		System.out.println(String.format(Locale.ROOT, "Pipeline: %d chunks of %d KB (%.1f MB), writing to a %s drive. %d bytes by transferTo, %d bytes in chunks",
+			chunks, chunkSize / 1024, chunks * (double) chunkSize / (1024 * 1024), networkDrive ? "network" : "local", bytesTransferred.get(), bytesChunked.get()));
+		System.out.println(read.report());
+		System.out.println(inflate.report());
+		System.out.println(write.report());
+
+		// The busiest stage is the one the others were waiting for
+		Stage busiest = read;
+		if (inflate.busy() > busiest.busy()) busiest = inflate;
+		if (write.busy() > busiest.busy()) busiest = write;
+		if (busiest == inflate) {
+			System.out.println("  Inflating held the unzip up (CPU-bound): more --threads may help");
+		}
+		else if (busiest == write) {
+			System.out.println("  Writing the sorted folder held the unzip up (I/O-bound)" + (networkDrive ? "" : ": more --write-threads may help on a network drive"));
+		}
+		else {
+			System.out.println("  Reading the Gradebook held the unzip up (I/O-bound): a copy of it on a faster drive may help");
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Whether a folder (or the nearest folder above it that is there) is on
+	* a network drive. Windows network paths start with two backslashes;
+	* elsewhere the file system's type is checked.
+	* --------------------------------------------------------------------
+	*/
+	static boolean isNetworkDrive(File folder)
+	{
+		File existing = folder.getAbsoluteFile();
+		if (existing.getPath().startsWith("\\\\")) return true;
+		while (existing != null && !existing.exists()) existing = existing.getParentFile();
+		if (existing == null) return false;
+		try {
+			return NETWORK_FILE_SYSTEMS.contains(Files.getFileStore(existing.toPath()).type().toLowerCase(Locale.ROOT));
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,322 @@
+/**
+* --------------------------------------------------------------------
+* Works out what an unzip will do before it starts, from the zip's central
+* directory alone (through ZipIndex), so problems are found in
+* milliseconds rather than after half the files have been written:
+* 		- how many students and files there are, and how big they are unzipped
+*		- whether there is enough free space where they are going
+*		- files that would be sorted to the same name (or to names that only
+*		  differ in case, which are the same file on Windows and macOS)
+*		- names that do not match the naming scheme (they go in 'unsorted')
+*
+* Every folder the unzip needs is then made in one go, before any file
+* is written. With --dry-run the plan is printed and nothing is unzipped.
+* --------------------------------------------------------------------
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+
+public class UnzipPlan {
+
+	// Most problems of each kind listed (the rest are counted)
+	private static final int MAX_LISTED = 20;
+
+	/**
+	* --------------------------------------------------------------------
+	* What one student will get.
+	* --------------------------------------------------------------------
+	*/
+	static final class Student {
+		final String studentNo;
+		final File folder;
+		int files = 0, nestedZips = 0;
+		long bytes = 0;
+
+		Student(String studentNo, File folder)
+		{
+			this.studentNo = studentNo;
+			this.folder = folder;
+		}
+	}
+
+	final String zipFilePath, destDir;
+	final String scheme;
+	final boolean packed;
+
+	// Students in the order they first appear in the zip
+	final LinkedHashMap<String, Student> students = new LinkedHashMap<String, Student>();
+	int files = 0, nestedZips = 0;
+	long bytes = 0;
+
+	// Students not in the roster saved by the last sort (-1 if it has not been sorted)
+	int newStudents = -1;
+
+	// Bytes needed and free where the Gradebook is unzipped to (-1 if it cannot be told)
+	long needed = 0, usable = -1;
+
+	final List<String> collisions = new ArrayList<String>(), caseCollisions = new ArrayList<String>();
+	final List<String> unsorted = new ArrayList<String>(), unsupported = new ArrayList<String>();
+
+	// Every folder the unzip writes to, parents before the folders in them
+	final TreeSet<String> folders = new TreeSet<String>();
+
+	long readNanos = 0;
+
+	private UnzipPlan(String zipFilePath, String destDir, String scheme, boolean packed)
+	{
+		this.zipFilePath = zipFilePath;
+		this.destDir = destDir;
+		this.scheme = scheme;
+		this.packed = packed;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Reads the zip's central directory and plans the unzip into destDir
+	* with the given options. Nothing is written.
+	* --------------------------------------------------------------------
+	*/
+	static UnzipPlan read(String zipFilePath, String destDir, Options options) throws IOException
+	{
+		long start = System.nanoTime();
+		UnzipPlan plan;
+		try (ZipIndex zip = new ZipIndex(new File(zipFilePath))) {
+			NamingScheme naming = options.naming;
+			for (ZipIndex.Entry ze : zip.entries()) {
+				if (!ze.isDirectory()) {
+					if (naming == null) naming = NamingScheme.detect(ze.name);
+					break;
+				}
+			}
+			plan = new UnzipPlan(zipFilePath, destDir, naming != null ? naming.schemeName() : "", options.pack);
+			if (naming != null) plan.add(zip, naming, options);
+		}
+
+		// Pack mode keeps the files as they are in the zip, so it needs about the zip's size
+		plan.needed = plan.packed ? new File(zipFilePath).length() : plan.bytes;
+		if (!plan.packed && options.template != null) plan.needed += new File(options.template).length() * plan.students.size();
+		plan.usable = usableSpace(new File(destDir));
+		Roster sorted = Roster.load(destDir);
+		if (sorted != null) {
+			plan.newStudents = 0;
+			for (String studentNo : plan.students.keySet()) {
+				if (sorted.get(studentNo) == null) plan.newStudents++;
+			}
+		}
+		plan.readNanos = System.nanoTime() - start;
+		return plan;
+	}
+
+	private void add(ZipIndex zip, NamingScheme naming, Options options)
+	{
+		NamingScheme.ParsedName parsed = new NamingScheme.ParsedName();
+
+		// Sorted path -> the entry that goes there, exactly and in lower case
+		HashMap<String, String> paths = new HashMap<String, String>(zip.entries().size() * 2);
+		HashMap<String, String> lowerPaths = new HashMap<String, String>(zip.entries().size() * 2);
+		folders.add(new File(destDir).getPath());
+
+		for (ZipIndex.Entry ze : zip.entries()) {
+			if (ze.isDirectory()) continue;
+			naming.read(ze.name, parsed);
+			String studentNo = parsed.studentNo(), fileName = parsed.sortedFileName();
+			if (options.students != null && !options.students.contains(studentNo)) continue;
+			if (!parsed.matched) unsorted.add(ze.name);
+			if (ze.isEncrypted() || (ze.method != ZipIndex.STORED && ze.method != ZipIndex.DEFLATED)) unsupported.add(ze.name);
+
+			Student student = students.get(studentNo);
+			if (student == null) {
+				student = new Student(studentNo, Script.studentFolder(destDir, studentNo));
+				students.put(studentNo, student);
+				if (!packed) folders.add(student.folder.getPath());
+			}
+			student.files++;
+			student.bytes += ze.size;
+			files++;
+			bytes += ze.size;
+			if (packed) continue;
+
+			if (fileName.indexOf('/') >= 0) addFolders(student.folder, new File(student.folder, fileName).getParentFile());
+
+			// A student's own zip is unzipped into their attempt folder, so its files are not known yet
+			if (NestedUnzip.isNestedZip(fileName, options.nestedDepth)) {
+				if (student.nestedZips++ == 0) folders.add(new File(student.folder, NestedUnzip.ATTEMPT_FOLDER).getPath());
+				nestedZips++;
+				continue;
+			}
+
+			String path = studentNo + "/" + fileName;
+			String before = paths.put(path, ze.name);
+			if (before != null) {
+				collisions.add(before + " and " + ze.name + " -> " + path);
+				continue;
+			}
+			before = lowerPaths.put(path.toLowerCase(Locale.ROOT), ze.name);
+			if (before != null) caseCollisions.add(before + " and " + ze.name);
+		}
+	}
+
+	// Adds a file's folders inside the student's folder (eg, 'src/model')
+	private void addFolders(File studentFolder, File folder)
+	{
+		while (folder != null && !folder.equals(studentFolder) && folders.add(folder.getPath())) {
+			folder = folder.getParentFile();
+		}
+	}
+
+	// Free space on the drive a folder is (or will be) on
+	private static long usableSpace(File folder)
+	{
+		File existing = folder.getAbsoluteFile();
+		while (existing != null && !existing.exists()) existing = existing.getParentFile();
+		return existing != null ? existing.getUsableSpace() : -1;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Whether there is room for the unzip (true if it cannot be told).
+	* --------------------------------------------------------------------
+	*/
+	boolean fits()
+	{
+		return usable < 0 || needed <= usable;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Whether anything in the plan needs looking at before unzipping.
+	* --------------------------------------------------------------------
+	*/
+	boolean hasProblems()
+	{
+		return !fits() || !collisions.isEmpty() || !caseCollisions.isEmpty() || !unsorted.isEmpty() || !unsupported.isEmpty();
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Makes every folder the unzip will write to, in one go. Returns how
+	* many were made (the rest were already there).
+	* --------------------------------------------------------------------
+	*/
+	int makeFolders() throws IOException
+	{
+		int made = 0;
+		for (String path : folders) {
+			File folder = new File(path);
+			// Parents come first, so mkdir (not mkdirs) is enough, except for the sorted folder itself
+			if (folder.mkdir() || (!folder.isDirectory() && folder.mkdirs())) made++;
+			else if (!folder.isDirectory()) throw new IOException("Could not make the folder " + folder);
+		}
+		return made;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Prints the plan. students: also list every student.
+	* --------------------------------------------------------------------
+	*/
+	void print(boolean students)
+	{
+		System.out.println(String.format("Plan for %s (%s naming, read in %.3f s):", new File(zipFilePath).getName(), scheme, readNanos / 1e9));
+		System.out.println(String.format("  %d students, %d files, %s unzipped%s", this.students.size(), files, size(bytes),
+			nestedZips > 0 ? " (and " + nestedZips + " student zips, which will be bigger unzipped)" : ""));
+		if (usable >= 0) {
+			System.out.println(String.format("  %s needed in %s, %s free%s", size(needed), new File(destDir).getAbsoluteFile().getParent(), size(usable),
+				fits() ? "" : " - NOT ENOUGH SPACE"));
+		}
+		if (!packed) System.out.println("  " + folders.size() + " folders");
+		if (newStudents >= 0) System.out.println("  Sorted before: " + newStudents + " students are new since then");
+		list("files would be sorted to the same name (only the last would be kept)", collisions);
+		list("files have names that only differ in case (the same file on Windows and macOS)", caseCollisions);
+		list("files do not match the " + scheme + " naming, so they go in '" + NamingScheme.UNSORTED + "'", unsorted);
+		list("files are encrypted or compressed in a way that cannot be unzipped", unsupported);
+
+		if (students) {
+			for (Student s : this.students.values()) {
+				System.out.println(String.format("    %-12s %5d files %10s%s", s.studentNo, s.files, size(s.bytes),
+					s.nestedZips > 0 ? " (" + s.nestedZips + " zips)" : ""));
+			}
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Plans an unzip, and makes its folders, before anything is written.
+	* Prints the plan if there is anything wrong with it (or with
+	* --verbose). Returns false if the unzip should not go ahead.
+	* --------------------------------------------------------------------
+	*/
+	static boolean prepare(String zipFilePath, String destDir, Options options)
+	{
+		UnzipPlan plan;
+		try {
+			plan = read(zipFilePath, destDir, options);
+		}
+		catch (IOException e) {
+			// The unzip itself says what is wrong with the zip (and may still get something out of it)
+			System.out.println("Could not plan the unzip of " + zipFilePath + " ..... " + e.getMessage());
+			return true;
+		}
+		if (plan.hasProblems() || Metrics.verbosity == Metrics.VERBOSE) plan.print(false);
+		if (!plan.fits()) {
+			Metrics.error();
+			System.out.println("Nothing was unzipped: there is not enough free space for " + zipFilePath);
+			return false;
+		}
+
+		// An incremental run tells new students by their folder not being there yet, so it makes its own
+		if (plan.packed || options.incremental) return true;
+		try {
+			long start = System.nanoTime();
+			int made = plan.makeFolders();
+			Metrics.verbose(String.format("Made %d folders in %.3f s", made, (System.nanoTime() - start) / 1e9));
+			return true;
+		}
+		catch (IOException e) {
+			Metrics.error();
+			System.out.println("Nothing was unzipped ..... " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Prints the plan for a Gradebook without unzipping anything (--dry-run).
+	* Returns false if it could not be unzipped as it is.
+	* --------------------------------------------------------------------
+	*/
+	static boolean dryRun(String zipFilePath, String destDir, Options options)
+	{
+		try {
+			UnzipPlan plan = read(zipFilePath, destDir, options);
+			plan.print(Metrics.verbosity == Metrics.VERBOSE);
+			return plan.fits() && plan.unsupported.isEmpty() && plan.files > 0;
+		}
+		catch (IOException e) {
+			System.out.println("Could not read " + zipFilePath + " ..... " + e.getMessage());
+			return false;
+		}
+	}
+
+	private static void list(String problem, List<String> names)
+	{
+		if (names.isEmpty()) return;
+		System.out.println("  " + names.size() + " " + problem + ":");
+		for (int i = 0; i < Math.min(names.size(), MAX_LISTED); i++) System.out.println("      " + names.get(i));
+		if (names.size() > MAX_LISTED) System.out.println("      ... and " + (names.size() - MAX_LISTED) + " more");
+	}
+
+	private static String size(long bytes)
+	{
+		if (bytes < 1024 * 1024) return String.format(Locale.ROOT, "%.1f KB", bytes / 1024.0);
+		if (bytes < 1024L * 1024 * 1024) return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024));
+		return String.format(Locale.ROOT, "%.2f GB", bytes / (1024.0 * 1024 * 1024));
+	}
+}
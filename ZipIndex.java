@@ -0,0 +1,338 @@
+/**
+* --------------------------------------------------------------------
+* Reads a zip's central directory straight from the file (through a
+* FileChannel), so every entry's name, sizes, CRC and where its data
+* starts in the zip are known without reading any of the data.
+*
+* Unlike ZipFile, this gives the position of each entry's bytes, so a
+* STORED entry can be copied from the zip to its file by the operating
+* system (FileChannel.transferTo) without passing through Java at all.
+*
+* Reads are positional, so any number of threads can use one ZipIndex.
+* Zip64 zips (over 4 GB, or over 65535 entries) are supported.
+* --------------------------------------------------------------------
+*/
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+public class ZipIndex implements Closeable {
+
+	static final int STORED = 0, DEFLATED = 8;
+
+	private static final int LOCAL_HEADER = 0x04034b50, CENTRAL_HEADER = 0x02014b50;
+	private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+	private static final int ZIP64_END = 0x06064b50, ZIP64_LOCATOR = 0x07064b50;
+
+	/**
+	* --------------------------------------------------------------------
+	* One entry from the central directory.
+	* --------------------------------------------------------------------
+	*/
+	static final class Entry {
+		String name;
+		int method, flags;
+		long crc, compressedSize, size, localHeaderOffset;
+		long dosTime;
+
+		// Where the entry's bytes start. Found from the local header the first time it is needed.
+		volatile long dataOffset = -1;
+
+		boolean isDirectory()
+		{
+			return name.endsWith("/");
+		}
+
+		boolean isEncrypted()
+		{
+			return (flags & 1) != 0;
+		}
+
+		/**
+		* Gets the entry's time in milliseconds, in the local time zone, as ZipEntry.getTime does.
+		*/
+		long time()
+		{
+			int date = (int) (dosTime >> 16), time = (int) dosTime;
+			try {
+				return LocalDateTime.of(((date >> 9) & 0x7f) + 1980, (date >> 5) & 0x0f, date & 0x1f,
+					(time >> 11) & 0x1f, (time >> 5) & 0x3f, (time << 1) & 0x3e)
+					.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+			}
+			catch (RuntimeException e) {
+				return -1;
+			}
+		}
+	}
+
+	private final File file;
+	private final FileChannel channel;
+	private final ArrayList<Entry> entries = new ArrayList<Entry>();
+
+	public ZipIndex(File file) throws IOException
+	{
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			readCentralDirectory();
+		}
+		catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e instanceof IOException ? (IOException) e : new ZipException(file + " is not a zip file: " + e);
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Gets the entries, in the order they are in the central directory.
+	* --------------------------------------------------------------------
+	*/
+	List<Entry> entries()
+	{
+		return entries;
+	}
+
+	FileChannel channel()
+	{
+		return channel;
+	}
+
+	File file()
+	{
+		return file;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Gets where an entry's bytes start in the zip, by reading its local header.
+	* --------------------------------------------------------------------
+	*/
+	long dataOffset(Entry entry) throws IOException
+	{
+		if (entry.dataOffset < 0) {
+			ByteBuffer header = read(entry.localHeaderOffset, 30);
+			if (header.getInt(0) != LOCAL_HEADER) throw new ZipException("Bad local header for " + entry.name);
+			int nameLength = header.getShort(26) & 0xffff, extraLength = header.getShort(28) & 0xffff;
+			entry.dataOffset = entry.localHeaderOffset + 30 + nameLength + extraLength;
+		}
+		return entry.dataOffset;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Opens a stream of an entry's unzipped bytes.
+	* --------------------------------------------------------------------
+	*/
+	InputStream inputStream(Entry entry, int bufferSize) throws IOException
+	{
+		if (entry.isEncrypted()) throw new ZipException(entry.name + " is encrypted");
+		InputStream raw = new RegionInputStream(channel, dataOffset(entry), entry.compressedSize, entry.method == DEFLATED);
+		if (entry.method == STORED) return raw;
+		if (entry.method == DEFLATED) return new InflaterInputStream(raw, new Inflater(true), bufferSize) {
+			@Override
+			public void close() throws IOException
+			{
+				super.close();
+				inf.end();
+			}
+		};
+		throw new ZipException(entry.name + " uses compression method " + entry.method + ", which is not supported");
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Opens a stream of an entry's bytes exactly as they are stored in the zip
+	* (still compressed, for deflated entries).
+	* --------------------------------------------------------------------
+	*/
+	InputStream rawInputStream(Entry entry) throws IOException
+	{
+		return new RegionInputStream(channel, dataOffset(entry), entry.compressedSize, false);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Finds the end of central directory record (it is in the last 64 KB)
+	* and reads every central directory header.
+	* --------------------------------------------------------------------
+	*/
+	private void readCentralDirectory() throws IOException
+	{
+		long fileSize = channel.size();
+		int tailLength = (int) Math.min(fileSize, 0xffff + 22);
+		ByteBuffer tail = read(fileSize - tailLength, tailLength);
+
+		int end = -1;
+		for (int i = tailLength - 22; i >= 0; i--) {
+			if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY) {
+				end = i;
+				break;
+			}
+		}
+		if (end < 0) throw new ZipException(file + " is not a zip file");
+
+		long count = tail.getShort(end + 10) & 0xffff;
+		long directorySize = tail.getInt(end + 12) & 0xffffffffL;
+		long directoryOffset = tail.getInt(end + 16) & 0xffffffffL;
+
+		// Zip64: the real values are in the zip64 end record, found through the locator just before
+		long locatorPosition = fileSize - tailLength + end - 20;
+		if (locatorPosition >= 0) {
+			ByteBuffer locator = read(locatorPosition, 20);
+			if (locator.getInt(0) == ZIP64_LOCATOR) {
+				ByteBuffer zip64End = read(locator.getLong(8), 56);
+				if (zip64End.getInt(0) != ZIP64_END) throw new ZipException("Bad zip64 end record in " + file);
+				count = zip64End.getLong(32);
+				directorySize = zip64End.getLong(40);
+				directoryOffset = zip64End.getLong(48);
+			}
+		}
+
+		if (directorySize > Integer.MAX_VALUE) throw new ZipException("Central directory of " + file + " is too big");
+		ByteBuffer directory = read(directoryOffset, (int) directorySize);
+		entries.ensureCapacity((int) Math.min(count, 1 << 20));
+
+		int position = 0;
+		for (long e = 0; e < count; e++) {
+			if (directory.getInt(position) != CENTRAL_HEADER) throw new ZipException("Bad central directory in " + file);
+
+			Entry entry = new Entry();
+			entry.flags = directory.getShort(position + 8) & 0xffff;
+			entry.method = directory.getShort(position + 10) & 0xffff;
+			entry.dosTime = directory.getInt(position + 12) & 0xffffffffL;
+			entry.crc = directory.getInt(position + 16) & 0xffffffffL;
+			entry.compressedSize = directory.getInt(position + 20) & 0xffffffffL;
+			entry.size = directory.getInt(position + 24) & 0xffffffffL;
+			int nameLength = directory.getShort(position + 28) & 0xffff;
+			int extraLength = directory.getShort(position + 30) & 0xffff;
+			int commentLength = directory.getShort(position + 32) & 0xffff;
+			entry.localHeaderOffset = directory.getInt(position + 42) & 0xffffffffL;
+
+			byte[] name = new byte[nameLength];
+			directory.position(position + 46);
+			directory.get(name);
+			entry.name = new String(name, StandardCharsets.UTF_8);
+
+			readZip64Extra(directory, position + 46 + nameLength, extraLength, entry);
+			entries.add(entry);
+			position += 46 + nameLength + extraLength + commentLength;
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Replaces any sizes or offset that were too big for the header (0xffffffff)
+	* with the real values from the zip64 extra field.
+	* --------------------------------------------------------------------
+	*/
+	private static void readZip64Extra(ByteBuffer directory, int start, int length, Entry entry)
+	{
+		int end = start + length;
+		while (start + 4 <= end) {
+			int id = directory.getShort(start) & 0xffff, size = directory.getShort(start + 2) & 0xffff;
+			if (id == 0x0001) {
+				int field = start + 4;
+				if (entry.size == 0xffffffffL && field + 8 <= start + 4 + size) { entry.size = directory.getLong(field); field += 8; }
+				if (entry.compressedSize == 0xffffffffL && field + 8 <= start + 4 + size) { entry.compressedSize = directory.getLong(field); field += 8; }
+				if (entry.localHeaderOffset == 0xffffffffL && field + 8 <= start + 4 + size) { entry.localHeaderOffset = directory.getLong(field); }
+				return;
+			}
+			start += 4 + size;
+		}
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Reads 'length' bytes at 'position' into a little endian buffer.
+	* --------------------------------------------------------------------
+	*/
+	private ByteBuffer read(long position, int length) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException("Unexpected end of " + file);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* A stream of part of the zip, read with positional reads so it does not
+	* disturb other threads. For deflated data one extra zero byte is given at
+	* the end, which the Inflater can need to finish (ZipFile does the same).
+	* --------------------------------------------------------------------
+	*/
+	static final class RegionInputStream extends InputStream {
+		private final FileChannel channel;
+		private long position;
+		private final long end;
+		private boolean padding;
+
+		RegionInputStream(FileChannel channel, long start, long length, boolean padding)
+		{
+			this.channel = channel;
+			this.position = start;
+			this.end = start + length;
+			this.padding = padding;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] one = new byte[1];
+			return read(one, 0, 1) == 1 ? one[0] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException
+		{
+			if (length == 0) return 0;
+			if (position >= end) {
+				if (!padding) return -1;
+				padding = false;
+				bytes[offset] = 0;
+				return 1;
+			}
+			int count = channel.read(ByteBuffer.wrap(bytes, offset, (int) Math.min(length, end - position)), position);
+			if (count < 0) throw new EOFException("Unexpected end of zip");
+			position += count;
+			return count;
+		}
+
+		@Override
+		public long skip(long n)
+		{
+			long skipped = Math.max(0, Math.min(n, end - position));
+			position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available()
+		{
+			return (int) Math.min(Integer.MAX_VALUE, end - position);
+		}
+	}
+}
@@ -0,0 +1,302 @@
+/**
+* --------------------------------------------------------------------
+* Writes a zip one entry at a time, where an entry can be copied from
+* another zip exactly as it is stored there (still compressed), so it is
+* never inflated and deflated again. Those bytes are moved by the
+* operating system with FileChannel.transferTo.
+*
+* Entries can also be added from bytes in memory, prepared (CRC worked
+* out and deflated) once and then written into any number of zips, eg,
+* the feedback sheet going into every student's zip.
+*
+* Zip64 records are written when the zip needs them (over 4 GB or over
+* 65535 entries). Not thread safe: one ZipWriter per zip being written.
+* --------------------------------------------------------------------
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+public class ZipWriter implements Closeable {
+
+	private static final int LOCAL_HEADER = 0x04034b50, CENTRAL_HEADER = 0x02014b50;
+	private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+	private static final int ZIP64_END = 0x06064b50, ZIP64_LOCATOR = 0x07064b50;
+	private static final long ZIP64_LIMIT = 0xffffffffL;
+
+	// General purpose flag bit 11: the name is UTF-8
+	private static final int UTF8_FLAG = 0x800;
+
+	/**
+	* --------------------------------------------------------------------
+	* An entry made from bytes in memory, ready to be written into any zip.
+	* --------------------------------------------------------------------
+	*/
+	static final class Prepared {
+		final String name;
+		final int method;
+		final long crc, size, dosTime;
+		final byte[] data;
+
+		Prepared(String name, int method, long crc, long size, long dosTime, byte[] data)
+		{
+			this.name = name;
+			this.method = method;
+			this.crc = crc;
+			this.size = size;
+			this.dosTime = dosTime;
+			this.data = data;
+		}
+	}
+
+	// What the central directory needs to know about each entry written
+	private static final class Written {
+		final byte[] name;
+		final int flags, method;
+		final long dosTime, crc, compressedSize, size, offset;
+
+		Written(byte[] name, int flags, int method, long dosTime, long crc, long compressedSize, long size, long offset)
+		{
+			this.name = name;
+			this.flags = flags;
+			this.method = method;
+			this.dosTime = dosTime;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.offset = offset;
+		}
+
+		boolean needsZip64()
+		{
+			return compressedSize >= ZIP64_LIMIT || size >= ZIP64_LIMIT || offset >= ZIP64_LIMIT;
+		}
+	}
+
+	private final WritableByteChannel out;
+	private final ArrayList<Written> written = new ArrayList<Written>();
+	private long position = 0;
+
+	public ZipWriter(File zipFile) throws IOException
+	{
+		out = FileChannel.open(zipFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Writes a zip to any channel, eg, into memory so it can be written
+	* to disk in one go.
+	* --------------------------------------------------------------------
+	*/
+	ZipWriter(WritableByteChannel out)
+	{
+		this.out = out;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Copies an entry from another zip without inflating it, under a new name.
+	* --------------------------------------------------------------------
+	*/
+	void copy(ZipIndex source, ZipIndex.Entry entry, String name) throws IOException
+	{
+		// Sizes are written in the header, so there is no data descriptor after the data (bit 3)
+		int flags = (entry.flags & ~0x8) | UTF8_FLAG;
+		Written w = new Written(name.getBytes(StandardCharsets.UTF_8), flags, entry.method, entry.dosTime,
+			entry.crc, entry.compressedSize, entry.size, position);
+		writeLocalHeader(w);
+
+		long from = source.dataOffset(entry), end = from + entry.compressedSize;
+		while (from < end) {
+			long moved = source.channel().transferTo(from, end - from, out);
+			if (moved <= 0) throw new ZipException("Unexpected end of " + entry.name);
+			from += moved;
+		}
+		position += entry.compressedSize;
+		written.add(w);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Writes an entry that was prepared from bytes in memory.
+	* --------------------------------------------------------------------
+	*/
+	void add(Prepared entry) throws IOException
+	{
+		Written w = new Written(entry.name.getBytes(StandardCharsets.UTF_8), UTF8_FLAG, entry.method, entry.dosTime,
+			entry.crc, entry.data.length, entry.size, position);
+		writeLocalHeader(w);
+		write(ByteBuffer.wrap(entry.data));
+		written.add(w);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Prepares bytes to be added to zips. They are deflated, unless that
+	* does not make them smaller (eg, an xlsx, which is already a zip).
+	* --------------------------------------------------------------------
+	*/
+	static Prepared prepare(String name, byte[] data)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		ByteArrayOutputStream deflated = new ByteArrayOutputStream(data.length / 2 + 64);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				int len = deflater.deflate(buffer);
+				deflated.write(buffer, 0, len);
+			}
+		}
+		finally {
+			deflater.end();
+		}
+
+		if (deflated.size() < data.length) {
+			return new Prepared(name, ZipIndex.DEFLATED, crc.getValue(), data.length, dosTime(LocalDateTime.now()), deflated.toByteArray());
+		}
+		return stored(name, data, crc.getValue());
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Prepares bytes to be added to zips as they are, without trying to
+	* deflate them (eg, a feedback sheet made for one student).
+	* --------------------------------------------------------------------
+	*/
+	static Prepared stored(String name, byte[] data)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		return stored(name, data, crc.getValue());
+	}
+
+	private static Prepared stored(String name, byte[] data, long crc)
+	{
+		return new Prepared(name, ZipIndex.STORED, crc, data.length, dosTime(LocalDateTime.now()), data);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Writes the central directory and closes the zip.
+	* --------------------------------------------------------------------
+	*/
+	@Override
+	public void close() throws IOException
+	{
+		try {
+			long directoryStart = position;
+			boolean zip64 = written.size() >= 0xffff;
+			for (Written w : written) {
+				zip64 |= w.needsZip64();
+				writeCentralHeader(w);
+			}
+			long directorySize = position - directoryStart;
+			zip64 |= directoryStart >= ZIP64_LIMIT || directorySize >= ZIP64_LIMIT;
+
+			if (zip64) writeZip64End(directoryStart, directorySize);
+
+			ByteBuffer end = buffer(22);
+			end.putInt(END_OF_CENTRAL_DIRECTORY).putShort((short) 0).putShort((short) 0);
+			end.putShort((short) Math.min(written.size(), 0xffff)).putShort((short) Math.min(written.size(), 0xffff));
+			end.putInt((int) Math.min(directorySize, ZIP64_LIMIT)).putInt((int) Math.min(directoryStart, ZIP64_LIMIT));
+			end.putShort((short) 0);
+			end.flip();
+			write(end);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private void writeLocalHeader(Written w) throws IOException
+	{
+		boolean zip64 = w.compressedSize >= ZIP64_LIMIT || w.size >= ZIP64_LIMIT;
+		ByteBuffer header = buffer(30 + w.name.length + (zip64 ? 20 : 0));
+		header.putInt(LOCAL_HEADER).putShort((short) (zip64 ? 45 : 20)).putShort((short) w.flags).putShort((short) w.method);
+		header.putInt((int) w.dosTime).putInt((int) w.crc);
+		header.putInt((int) (zip64 ? ZIP64_LIMIT : w.compressedSize)).putInt((int) (zip64 ? ZIP64_LIMIT : w.size));
+		header.putShort((short) w.name.length).putShort((short) (zip64 ? 20 : 0));
+		header.put(w.name);
+		if (zip64) header.putShort((short) 1).putShort((short) 16).putLong(w.size).putLong(w.compressedSize);
+		header.flip();
+		write(header);
+	}
+
+	private void writeCentralHeader(Written w) throws IOException
+	{
+		// The zip64 extra field holds only the values that did not fit, in this order
+		ByteBuffer extra = buffer(28);
+		if (w.size >= ZIP64_LIMIT) extra.putLong(w.size);
+		if (w.compressedSize >= ZIP64_LIMIT) extra.putLong(w.compressedSize);
+		if (w.offset >= ZIP64_LIMIT) extra.putLong(w.offset);
+		int extraLength = extra.position() > 0 ? extra.position() + 4 : 0;
+
+		ByteBuffer header = buffer(46 + w.name.length + extraLength);
+		header.putInt(CENTRAL_HEADER).putShort((short) (w.needsZip64() ? 45 : 20)).putShort((short) (w.needsZip64() ? 45 : 20));
+		header.putShort((short) w.flags).putShort((short) w.method).putInt((int) w.dosTime).putInt((int) w.crc);
+		header.putInt((int) Math.min(w.compressedSize, ZIP64_LIMIT)).putInt((int) Math.min(w.size, ZIP64_LIMIT));
+		header.putShort((short) w.name.length).putShort((short) extraLength).putShort((short) 0);
+		header.putShort((short) 0).putShort((short) 0).putInt(0);
+		header.putInt((int) Math.min(w.offset, ZIP64_LIMIT));
+		header.put(w.name);
+		if (extraLength > 0) {
+			header.putShort((short) 1).putShort((short) (extraLength - 4));
+			extra.flip();
+			header.put(extra);
+		}
+		header.flip();
+		write(header);
+	}
+
+	private void writeZip64End(long directoryStart, long directorySize) throws IOException
+	{
+		long zip64EndStart = position;
+		ByteBuffer end = buffer(56 + 20);
+		end.putInt(ZIP64_END).putLong(44).putShort((short) 45).putShort((short) 45).putInt(0).putInt(0);
+		end.putLong(written.size()).putLong(written.size()).putLong(directorySize).putLong(directoryStart);
+		end.putInt(ZIP64_LOCATOR).putInt(0).putLong(zip64EndStart).putInt(1);
+		end.flip();
+		write(end);
+	}
+
+	private static ByteBuffer buffer(int size)
+	{
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	// Writes what is left in a buffer and moves the position on
+	private void write(ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining()) position += out.write(buffer);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Gets a time in the MS-DOS format zips use (2 second precision, from 1980).
+	* --------------------------------------------------------------------
+	*/
+	static long dosTime(LocalDateTime time)
+	{
+		if (time.getYear() < 1980) return (1 << 21) | (1 << 16);
+		return ((long) (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+			| time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1) & 0xffffffffL;
+	}
+}
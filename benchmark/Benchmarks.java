@@ -0,0 +1,395 @@
+/**
+* --------------------------------------------------------------------
+* Benchmarks for the script: Script.unzip (sequential and with worker
+* threads), copying (or filling in) the feedback sheets, and parsing entry names.
+*
+* A Gradebook is made with GradebookGenerator first, then each benchmark
+* is run a few times to warm up and then measured. The results are written
+* as JSON, in the same layout JMH uses, so they can be compared between
+* releases with the usual JMH tools.
+*
+* To run (from the repository folder):
+*		javac -d benchmark/classes *.java benchmark/*.java
+*		java -cp benchmark/classes Benchmarks --students 600 --threads 1,4,8 --out results.json
+* --------------------------------------------------------------------
+*/
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+public class Benchmarks {
+
+	/**
+	* --------------------------------------------------------------------
+	* Something to run: a measured operation, or the untimed setup before it.
+	* --------------------------------------------------------------------
+	*/
+	interface Op {
+		void run() throws Exception;
+	}
+
+	static class Result {
+		String name, mode, unit;
+		Map<String, String> params = new LinkedHashMap<String, String>();
+		ArrayList<Double> samples = new ArrayList<Double>();
+	}
+
+	int warmup = 2;
+	int iterations = 5;
+	String threads = "1,4";
+	String only = "all";
+	String out = "benchmark-results.json";
+	File workFolder = new File(System.getProperty("java.io.tmpdir"), "sorting-script-benchmark");
+	GradebookGenerator generator = new GradebookGenerator();
+
+	private final ArrayList<Result> results = new ArrayList<Result>();
+	private final PrintStream console = System.out;
+
+	public static void main(String[] args) throws Exception
+	{
+		Benchmarks benchmarks = new Benchmarks();
+		for (int i = 0; i < args.length; i++) benchmarks.set(args[i], args[++i]);
+		benchmarks.runAll();
+	}
+
+	void set(String option, String value)
+	{
+		if (option.equals("--warmup")) warmup = Integer.parseInt(value);
+		else if (option.equals("--iterations")) iterations = Integer.parseInt(value);
+		else if (option.equals("--threads")) threads = value;
+		else if (option.equals("--only")) only = value;
+		else if (option.equals("--out")) out = value;
+		else if (option.equals("--work")) workFolder = new File(value);
+		else generator.set(option, value);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Makes the Gradebook, runs the benchmarks and writes the JSON results.
+	* --------------------------------------------------------------------
+	*/
+	void runAll() throws Exception
+	{
+		delete(workFolder);
+		workFolder.mkdirs();
+		File zip = generator.write(new File(workFolder, "Gradebook.zip"));
+		String zipPath = zip.getPath();
+		String dest = Script.unzipDestination(zipPath);
+		console.println("Generated " + zip + " (" + zip.length() + " bytes)");
+
+		if (selected("unzip")) {
+			// 0 threads is the original sequential unzip
+			ArrayList<String> threadCounts = new ArrayList<String>();
+			threadCounts.add("0");
+			for (String count : threads.split(",")) threadCounts.add(count.trim());
+
+			for (String count : threadCounts) {
+				Options options = new Options();
+				options.threads = Integer.parseInt(count);
+				Result result = result("Script.unzip", "ss", "ms/op");
+				result.params.put("threads", count);
+				measure(result, () -> delete(new File(dest)), () -> Script.unzip(zipPath, dest, options));
+			}
+		}
+
+		if (selected("feedback")) {
+			// The feedback benchmarks need a sorted folder to copy into
+			Options options = new Options();
+			delete(new File(dest));
+			Roster roster = quietly(() -> Script.unzip(zipPath, dest, options));
+			File template = new File(workFolder, "Feedback-Template.xlsx");
+			writeTemplate(template);
+
+			Result copy = result("Script.copyFeedback", "ss", "ms/op");
+			measure(copy, () -> deleteFeedback(roster, template), () -> {
+				for (File folder : roster.folders()) {
+					Script.copyFeedback(template.getPath(), new File(folder, template.getName()).getPath());
+				}
+			});
+
+			for (FeedbackPlacer.Mode mode : FeedbackPlacer.Mode.values()) {
+				Result result = result("FeedbackPlacer.place", "ss", "ms/op");
+				result.params.put("mode", mode.name().toLowerCase(Locale.ROOT));
+				measure(result, () -> deleteFeedback(roster, template),
+					() -> new FeedbackPlacer(mode).place(template.getPath(), dest, roster.folders(), template.getName()));
+			}
+
+			// A sheet with placeholders: copied as it is, against filled in for each student
+			File sheet = new File(workFolder, "Feedback-Sheet.xlsx");
+			writeSheetTemplate(sheet);
+
+			Result plain = result("Script.copyFeedback", "ss", "ms/op");
+			plain.params.put("template", "xlsx");
+			measure(plain, () -> deleteFeedback(roster, sheet), () -> {
+				for (File folder : roster.folders()) {
+					Script.copyFeedback(sheet.getPath(), new File(folder, sheet.getName()).getPath());
+				}
+			});
+
+			for (String count : threads.split(",")) {
+				Result result = result("FeedbackRenderer.render", "ss", "ms/op");
+				result.params.put("threads", count.trim());
+				measure(result, () -> deleteFeedback(roster, sheet),
+					() -> FeedbackRenderer.load(sheet.getPath()).render(roster, roster.folders(), sheet.getName(), Integer.parseInt(count.trim())));
+			}
+		}
+
+		if (selected("naming")) {
+			ArrayList<String> names = new ArrayList<String>();
+			try (ZipFile zipFile = new ZipFile(zip)) {
+				Enumeration<? extends ZipEntry> entries = zipFile.entries();
+				while (entries.hasMoreElements()) names.add(entries.nextElement().getName());
+			}
+
+			Result result = result("NamingScheme.read", "thrpt", "ops/ms");
+			result.params.put("scheme", "blackboard");
+			NamingScheme.ParsedName parsed = new NamingScheme.ParsedName();
+			long[] sink = new long[1];
+			measureThroughput(result, names.size(), () -> {
+				for (String name : names) sink[0] += NamingScheme.BLACKBOARD.read(name, parsed).idEnd;
+			});
+		}
+
+		writeJson(new File(out));
+		console.println("Results written to " + new File(out).getAbsolutePath());
+	}
+
+	private boolean selected(String benchmark)
+	{
+		return only.equals("all") || only.contains(benchmark);
+	}
+
+	private Result result(String name, String mode, String unit)
+	{
+		Result result = new Result();
+		result.name = name;
+		result.mode = mode;
+		result.unit = unit;
+		results.add(result);
+		return result;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Times single runs of 'op' (milliseconds per run), after running 'setup' each time.
+	* --------------------------------------------------------------------
+	*/
+	private void measure(Result result, Op setup, Op op) throws Exception
+	{
+		for (int i = 0; i < warmup + iterations; i++) {
+			setup.run();
+			long start = System.nanoTime();
+			quietly(() -> { op.run(); return null; });
+			double millis = (System.nanoTime() - start) / 1e6;
+			if (i >= warmup) result.samples.add(millis);
+		}
+		report(result);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Times 'op', which does 'operations' things per run, as operations per millisecond.
+	* --------------------------------------------------------------------
+	*/
+	private void measureThroughput(Result result, int operations, Op op) throws Exception
+	{
+		for (int i = 0; i < warmup + iterations; i++) {
+			long start = System.nanoTime();
+			op.run();
+			double millis = (System.nanoTime() - start) / 1e6;
+			if (i >= warmup) result.samples.add(operations / millis);
+		}
+		report(result);
+	}
+
+	private void report(Result result)
+	{
+		console.println(String.format("%-24s %-22s %12.3f +- %.3f %s", result.name, result.params, mean(result.samples), error(result.samples), result.unit));
+	}
+
+	interface Quiet<T> {
+		T run() throws Exception;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Runs something with System.out switched off, so the script's own
+	* messages do not end up being what is measured.
+	* --------------------------------------------------------------------
+	*/
+	private <T> T quietly(Quiet<T> quiet) throws Exception
+	{
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {}
+			@Override
+			public void write(byte[] b, int off, int len) {}
+		}));
+		try {
+			return quiet.run();
+		}
+		finally {
+			System.setOut(console);
+		}
+	}
+
+	static double mean(ArrayList<Double> samples)
+	{
+		double sum = 0;
+		for (double sample : samples) sum += sample;
+		return samples.isEmpty() ? Double.NaN : sum / samples.size();
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Half the width of the 99.9% confidence interval, as JMH reports it.
+	* --------------------------------------------------------------------
+	*/
+	static double error(ArrayList<Double> samples)
+	{
+		int n = samples.size();
+		if (n < 2) return Double.NaN;
+		double mean = mean(samples), squares = 0;
+		for (double sample : samples) squares += (sample - mean) * (sample - mean);
+		double standardDeviation = Math.sqrt(squares / (n - 1));
+
+		// Student's t for 99.9% (two sided) with n-1 degrees of freedom
+		double[] t = { 636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+			4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850 };
+		double tValue = n - 2 < t.length ? t[n - 2] : 3.291;
+		return tValue * standardDeviation / Math.sqrt(n);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Writes the results in JMH's JSON format.
+	* --------------------------------------------------------------------
+	*/
+	private void writeJson(File file) throws IOException
+	{
+		StringBuilder json = new StringBuilder("[\n");
+		for (int r = 0; r < results.size(); r++) {
+			Result result = results.get(r);
+			double mean = mean(result.samples), error = error(result.samples);
+			json.append("  {\n");
+			json.append("    \"jmhVersion\" : \"none (sorting-script Benchmarks)\",\n");
+			json.append("    \"benchmark\" : ").append(quote(result.name)).append(",\n");
+			json.append("    \"mode\" : ").append(quote(result.mode)).append(",\n");
+			json.append("    \"threads\" : 1,\n    \"forks\" : 0,\n");
+			json.append("    \"jvm\" : ").append(quote(System.getProperty("java.home"))).append(",\n");
+			json.append("    \"jdkVersion\" : ").append(quote(System.getProperty("java.version"))).append(",\n");
+			json.append("    \"warmupIterations\" : ").append(warmup).append(",\n");
+			json.append("    \"measurementIterations\" : ").append(iterations).append(",\n");
+			json.append("    \"params\" : {");
+			int p = 0;
+			Map<String, String> params = new LinkedHashMap<String, String>(result.params);
+			params.put("students", "" + generator.students);
+			params.put("filesPerStudent", "" + generator.filesPerStudent);
+			params.put("meanSize", "" + generator.meanSize);
+			params.put("distribution", generator.distribution);
+			params.put("level", "" + generator.level);
+			params.put("nestedRatio", "" + generator.nestedRatio);
+			for (Map.Entry<String, String> param : params.entrySet()) {
+				json.append(p++ > 0 ? ", " : " ").append(quote(param.getKey())).append(" : ").append(quote(param.getValue()));
+			}
+			json.append(" },\n");
+			json.append("    \"primaryMetric\" : {\n");
+			json.append("      \"score\" : ").append(number(mean)).append(",\n");
+			json.append("      \"scoreError\" : ").append(number(error)).append(",\n");
+			json.append("      \"scoreConfidence\" : [ ").append(number(mean - error)).append(", ").append(number(mean + error)).append(" ],\n");
+			json.append("      \"scoreUnit\" : ").append(quote(result.unit)).append(",\n");
+			json.append("      \"rawData\" : [ [ ");
+			for (int s = 0; s < result.samples.size(); s++) {
+				json.append(s > 0 ? ", " : "").append(number(result.samples.get(s)));
+			}
+			json.append(" ] ]\n    }\n  }").append(r < results.size() - 1 ? ",\n" : "\n");
+		}
+		json.append("]\n");
+
+		try (FileWriter writer = new FileWriter(file)) {
+			writer.write(json.toString());
+		}
+	}
+
+	private static String quote(String text)
+	{
+		return "\"" + text.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	private static String number(double value)
+	{
+		return Double.isNaN(value) ? "\"NaN\"" : String.format(Locale.ROOT, "%.6f", value);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Makes a small stand-in feedback sheet.
+	* --------------------------------------------------------------------
+	*/
+	private static void writeTemplate(File template) throws IOException
+	{
+		byte[] bytes = new byte[256 * 1024];
+		new java.util.Random(2).nextBytes(bytes);
+		Files.write(template.toPath(), bytes);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Makes a stand-in xlsx with a name and number to fill in, about the
+	* size of the example feedback sheet.
+	* --------------------------------------------------------------------
+	*/
+	private static void writeSheetTemplate(File template) throws IOException
+	{
+		java.util.Random random = new java.util.Random(3);
+		try (java.util.zip.ZipOutputStream zip = new java.util.zip.ZipOutputStream(new java.io.FileOutputStream(template))) {
+			for (int part = 0; part < 10; part++) {
+				zip.putNextEntry(new ZipEntry("xl/part" + part + ".xml"));
+				StringBuilder xml = new StringBuilder("<part>");
+				for (int i = 0; i < 200; i++) xml.append("<c r=\"").append(random.nextInt(1000)).append("\"/>");
+				zip.write(xml.append("</part>").toString().getBytes("UTF-8"));
+			}
+			zip.putNextEntry(new ZipEntry("xl/sharedStrings.xml"));
+			zip.write("<sst><si><t>Name:</t></si><si><t>{{name}}</t></si><si><t>Number:</t></si><si><t>{{studentNo}}</t></si></sst>".getBytes("UTF-8"));
+		}
+	}
+
+	private static void deleteFeedback(Roster roster, File template) throws IOException
+	{
+		for (File folder : roster.folders()) Files.deleteIfExists(new File(folder, template.getName()).toPath());
+	}
+
+	static void delete(File folder) throws IOException
+	{
+		if (!folder.exists()) return;
+		Files.walkFileTree(folder.toPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException
+			{
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException
+			{
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
@@ -0,0 +1,202 @@
+/**
+* --------------------------------------------------------------------
+* Makes a fake Gradebook zip laid out like a Blackboard download, for
+* benchmarking. Every student gets a CoverSheet, an Info.txt and a number
+* of submission files. Some students can upload their files in their own zip.
+*
+* To run (from the repository folder):
+*		javac -d benchmark/classes *.java benchmark/*.java
+*		java -cp benchmark/classes GradebookGenerator Gradebook.zip --students 600 --files 5 --size 200000
+* --------------------------------------------------------------------
+*/
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class GradebookGenerator {
+
+	int students = 100;
+	int filesPerStudent = 5;
+
+	// Average size of a submission file, and how the sizes are spread: fixed, uniform or exponential
+	long meanSize = 50 * 1024;
+	String distribution = "exponential";
+
+	// 0 stores the files (as Blackboard does), 1-9 deflates them
+	int level = 0;
+
+	// Fraction of students who upload their files inside their own zip
+	double nestedRatio = 0.0;
+
+	long seed = 1;
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length == 0) {
+			System.out.println("Usage: java GradebookGenerator OUTPUT.zip [--students N] [--files N] [--size BYTES]");
+			System.out.println("       [--distribution fixed|uniform|exponential] [--level 0-9] [--nested-ratio 0.0-1.0] [--seed N]");
+			System.exit(1);
+		}
+		GradebookGenerator generator = new GradebookGenerator();
+		for (int i = 1; i < args.length; i++) generator.set(args[i], args[++i]);
+
+		long start = System.nanoTime();
+		File zip = generator.write(new File(args[0]));
+		System.out.println(String.format("Wrote %s (%d bytes) in %.2f s", zip, zip.length(), (System.nanoTime() - start) / 1e9));
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Sets one option by its command line name, eg, set("--students", "600").
+	* --------------------------------------------------------------------
+	*/
+	void set(String option, String value)
+	{
+		if (option.equals("--students")) students = Integer.parseInt(value);
+		else if (option.equals("--files")) filesPerStudent = Integer.parseInt(value);
+		else if (option.equals("--size")) meanSize = Long.parseLong(value);
+		else if (option.equals("--distribution")) distribution = value.toLowerCase(Locale.ROOT);
+		else if (option.equals("--level")) level = Integer.parseInt(value);
+		else if (option.equals("--nested-ratio")) nestedRatio = Double.parseDouble(value);
+		else if (option.equals("--seed")) seed = Long.parseLong(value);
+		else throw new IllegalArgumentException("Unknown option: " + option);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Writes the Gradebook and returns it.
+	* --------------------------------------------------------------------
+	*/
+	File write(File zipFile) throws IOException
+	{
+		Random random = new Random(seed);
+		byte[] content = content(random);
+
+		try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipFile), 1 << 16))) {
+			zos.setLevel(Math.max(level, 1));
+			for (int s = 0; s < students; s++) {
+				String studentNo = "c" + (3000000 + s);
+				String prefix = "Gradebook/Assignment1_" + studentNo + "_";
+
+				put(zos, prefix + "CoverSheet.docx", content, 0, size(random), random);
+				put(zos, prefix + "Info.txt", info(studentNo, s).getBytes("UTF-8"));
+
+				if (random.nextDouble() < nestedRatio) {
+					put(zos, prefix + "Submission.zip", innerZip(content, random));
+				}
+				else {
+					for (int f = 0; f < filesPerStudent; f++) {
+						put(zos, prefix + "File" + f + ".java", content, 0, size(random), random);
+					}
+				}
+			}
+		}
+		return zipFile;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Makes the student's own zip of their files.
+	* --------------------------------------------------------------------
+	*/
+	private byte[] innerZip(byte[] content, Random random) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ZipOutputStream inner = new ZipOutputStream(bytes)) {
+			for (int f = 0; f < filesPerStudent; f++) {
+				inner.putNextEntry(new ZipEntry("src/File" + f + ".java"));
+				int size = size(random);
+				int offset = random.nextInt(content.length - size + 1);
+				inner.write(content, offset, size);
+				inner.closeEntry();
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	private void put(ZipOutputStream zos, String name, byte[] data) throws IOException
+	{
+		put(zos, name, data, 0, data.length, null);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Adds one entry. Stored entries need their size and CRC up front.
+	* random: picks where in 'data' the entry starts (null to start at 'offset')
+	* --------------------------------------------------------------------
+	*/
+	private void put(ZipOutputStream zos, String name, byte[] data, int offset, int length, Random random) throws IOException
+	{
+		if (random != null) offset = random.nextInt(data.length - length + 1);
+
+		ZipEntry entry = new ZipEntry(name);
+		if (level == 0) {
+			CRC32 crc = new CRC32();
+			crc.update(data, offset, length);
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(length);
+			entry.setCompressedSize(length);
+			entry.setCrc(crc.getValue());
+		}
+		zos.putNextEntry(entry);
+		zos.write(data, offset, length);
+		zos.closeEntry();
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Picks the size of the next file from the distribution.
+	* Sizes are capped at 8 times the mean (and 64 MB) so one file cannot take over.
+	* --------------------------------------------------------------------
+	*/
+	private int size(Random random)
+	{
+		double size;
+		if (distribution.equals("fixed")) size = meanSize;
+		else if (distribution.equals("uniform")) size = random.nextDouble() * 2 * meanSize;
+		else size = -Math.log(1 - random.nextDouble()) * meanSize;
+		return (int) Math.min(size, maxSize());
+	}
+
+	private long maxSize()
+	{
+		return Math.min(8 * meanSize, 64L * 1024 * 1024);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Makes the bytes files are cut from: source-code-like text, which
+	* compresses about as well as real submissions do.
+	* --------------------------------------------------------------------
+	*/
+	private byte[] content(Random random)
+	{
+		String[] words = { "public", "class", "int", "return", "for", "if", "else", "new", "String", "void",
+			"private", "static", "final", "total", "count", "product", "store", "price", "=", "+", ";", "{", "}", "(", ")" };
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		long length = Math.max(maxSize(), 1024);
+		StringBuilder line = new StringBuilder();
+		while (bytes.size() < length) {
+			line.setLength(0);
+			line.append('\t');
+			for (int w = random.nextInt(10) + 1; w > 0; w--) line.append(words[random.nextInt(words.length)]).append(' ');
+			line.append(random.nextInt(100000)).append('\n');
+			byte[] lineBytes = line.toString().getBytes();
+			bytes.write(lineBytes, 0, lineBytes.length);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static String info(String studentNo, int s)
+	{
+		return "Name: Student " + s + " (" + studentNo + ")\r\n\r\nDue Date: 12/08/18 00:00:00\r\n\r\nSubmission Date: 11/08/18 23:59:00";
+	}
+}
@@ -0,0 +1,119 @@
+/**
+* --------------------------------------------------------------------
+* Measures how fast entry names are parsed, over a million made-up names
+* for each naming scheme, and how much memory parsing allocates.
+* The old indexOf/substring parsing from Script.unzip is measured too.
+*
+* To run (from the repository folder):
+*		javac -d benchmark/classes *.java benchmark/*.java
+*		java -cp benchmark/classes NamingSchemeBenchmark [names]
+* --------------------------------------------------------------------
+*/
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+public class NamingSchemeBenchmark {
+
+	// How many times each measurement is run before the timed runs
+	static final int WARMUP_ROUNDS = 5;
+	static final int MEASURED_ROUNDS = 5;
+
+	// Stops the JIT from removing the parsing as dead code
+	static long sink = 0;
+
+	public static void main(String[] args)
+	{
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+		String[] blackboard = names("blackboard", count);
+		String[] moodle = names("moodle", count);
+		String[] canvas = names("canvas", count);
+
+		System.out.println(String.format("%-22s %12s %10s %14s", "parser", "names/s", "ns/name", "bytes/name"));
+		measure("blackboard (old)", blackboard, null);
+		measure("blackboard", blackboard, NamingScheme.BLACKBOARD);
+		measure("moodle", moodle, NamingScheme.MOODLE);
+		measure("canvas", canvas, NamingScheme.CANVAS);
+		if (sink == 42) System.out.println();
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Makes 'count' entry names in a scheme's layout, for 200 names per student.
+	* --------------------------------------------------------------------
+	*/
+	static String[] names(String scheme, int count)
+	{
+		String[] files = { "CoverSheet.docx", "Info.txt", "Interface.java", "Product.java", "Store.java", "report_final.pdf" };
+		Random random = new Random(1);
+		String[] names = new String[count];
+		for (int i = 0; i < count; i++) {
+			int student = 3000000 + i / 200;
+			String file = files[random.nextInt(files.length)];
+			if (scheme.equals("blackboard")) {
+				names[i] = "Gradebook/Lab_calc_Assignment1_c" + student + "_" + file;
+			}
+			else if (scheme.equals("moodle")) {
+				names[i] = "Student Name" + student + "_" + student + "_assignsubmission_file_/" + file;
+			}
+			else {
+				names[i] = "namestudent" + (i % 3 == 0 ? "_LATE" : "") + "_" + student + "_" + (9000000 + i) + "_" + file;
+			}
+		}
+		return names;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Parses every name, repeatedly, and prints the best round.
+	* Only the parse is timed: no Strings are asked for from the parsed name.
+	* scheme: null measures the old parsing from Script.unzip
+	* --------------------------------------------------------------------
+	*/
+	static void measure(String label, String[] names, NamingScheme scheme)
+	{
+		NamingScheme.ParsedName parsed = new NamingScheme.ParsedName();
+		long bestNanos = Long.MAX_VALUE, allocated = 0;
+
+		for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+			long allocatedBefore = allocatedBytes();
+			long start = System.nanoTime();
+			for (String name : names) {
+				if (scheme == null) {
+					sink += oldParse(name).length();
+				}
+				else {
+					scheme.read(name, parsed);
+					sink += parsed.idEnd;
+				}
+			}
+			long nanos = System.nanoTime() - start;
+			if (round >= WARMUP_ROUNDS && nanos < bestNanos) {
+				bestNanos = nanos;
+				allocated = allocatedBytes() - allocatedBefore;
+			}
+		}
+
+		System.out.println(String.format("%-22s %12.0f %10.1f %14.1f", label,
+			names.length / (bestNanos / 1e9), (double) bestNanos / names.length, (double) allocated / names.length));
+	}
+
+	// The parsing Script.unzip used before the naming schemes
+	static String oldParse(String name)
+	{
+		String fileName = name.substring(name.indexOf("_c")+1, name.length());
+		String removedPrefix = fileName.substring(fileName.indexOf("_c")+1, fileName.length());
+		return removedPrefix.substring(0, removedPrefix.indexOf("_"));
+	}
+
+	// Bytes allocated by this thread so far, or 0 if the JVM cannot tell
+	static long allocatedBytes()
+	{
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+}
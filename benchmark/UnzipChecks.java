@@ -0,0 +1,225 @@
+/**
+* --------------------------------------------------------------------
+* Checks that damaged Gradebooks are reported as not fully unzipped (or
+* the damaged student's archive as unopened) in every unzip mode
+* (sequential, with worker threads and with --pipeline), rather than
+* hanging the run or stopping it with an exception.
+* Each Gradebook is made here, with one good student and one damaged one.
+*
+* To run (from the repository folder):
+*		javac -d benchmark/classes *.java benchmark/*.java
+*		java -cp benchmark/classes UnzipChecks
+* Prints each check, and exits with 1 if any of them failed.
+* --------------------------------------------------------------------
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class UnzipChecks {
+
+	// How long one unzip of a tiny Gradebook can take before it is taken to have hung
+	static final int TIMEOUT_SECONDS = 60;
+
+	static final String GOOD = "Gradebook/Assignment1_c3000001_attempt_2020-01-01-00-00-00_report.txt";
+	static final String DAMAGED = "Gradebook/Assignment1_c3000002_attempt_2020-01-01-00-00-00_report.txt";
+	static final String DAMAGED_ZIP = "Gradebook/Assignment1_c3000002_attempt_2020-01-01-00-00-00_work.zip";
+	static final String DAMAGED_TAR = "Gradebook/Assignment1_c3000002_attempt_2020-01-01-00-00-00_work.tar";
+
+	// The modes each Gradebook is unzipped in
+	static final String[] MODES = { "sequential", "threads", "pipeline" };
+
+	private final File workFolder;
+	private int failed = 0;
+
+	UnzipChecks(File workFolder)
+	{
+		this.workFolder = workFolder;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		File workFolder = Files.createTempDirectory("unzip-checks").toFile();
+		UnzipChecks checks = new UnzipChecks(workFolder);
+		try {
+			checks.truncatedEntry();
+			checks.nameNotUtf8();
+			checks.paxRecordMalformed();
+		}
+		finally {
+			Benchmarks.delete(workFolder);
+		}
+		System.out.println(checks.failed == 0 ? "All checks passed" : checks.failed + " checks failed");
+		System.exit(checks.failed == 0 ? 0 : 1);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* A deflated entry cut short: its sizes say it ends half way through
+	* its deflated bytes.
+	* --------------------------------------------------------------------
+	*/
+	void truncatedEntry() throws Exception
+	{
+		ZipWriter.Prepared whole = ZipWriter.prepare(DAMAGED, text(200000));
+		ZipWriter.Prepared truncated = new ZipWriter.Prepared(whole.name, whole.method, whole.crc, whole.size, whole.dosTime,
+			Arrays.copyOf(whole.data, whole.data.length / 2));
+		File zip = gradebook("Truncated", truncated);
+		for (String mode : MODES) check("truncated entry", zip, mode);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* A student's zip with a file name in CP437 (as old Windows zip tools
+	* write them), which is not UTF-8, between two good files.
+	* --------------------------------------------------------------------
+	*/
+	void nameNotUtf8() throws Exception
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ZipOutputStream studentZip = new ZipOutputStream(bytes, Charset.forName("IBM437"))) {
+			for (String name : new String[] { "notes.txt", "r\u00e9sum\u00e9.txt", "report.txt" }) {
+				studentZip.putNextEntry(new ZipEntry(name));
+				studentZip.write(text(1000));
+				studentZip.closeEntry();
+			}
+		}
+		File zip = gradebook("NotUtf8", ZipWriter.stored(DAMAGED_ZIP, bytes.toByteArray()));
+		for (String mode : MODES) check("name not UTF-8", zip, mode);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* A student's tar with a pax header whose record is too short for its
+	* own length ("1 x"), before a good file.
+	* --------------------------------------------------------------------
+	*/
+	void paxRecordMalformed() throws Exception
+	{
+		ByteArrayOutputStream tar = new ByteArrayOutputStream();
+		byte[] pax = "1 x\n".getBytes(StandardCharsets.US_ASCII);
+		tarEntry(tar, "PaxHeader/report.txt", 'x', pax);
+		tarEntry(tar, "report.txt", '0', text(1000));
+		tar.write(new byte[2 * TarReader.BLOCK_SIZE]);
+		File zip = gradebook("BadPax", ZipWriter.stored(DAMAGED_TAR, tar.toByteArray()));
+		for (String mode : MODES) check("pax record malformed", zip, mode);
+	}
+
+	// Writes a ustar header and the data after it, padded to a whole block
+	private static void tarEntry(ByteArrayOutputStream tar, String name, char type, byte[] data)
+	{
+		byte[] header = new byte[TarReader.BLOCK_SIZE];
+		put(header, 0, name);
+		put(header, 100, "0000644");
+		put(header, 124, String.format("%011o", data.length));
+		put(header, 136, "00000000000");
+		header[156] = (byte) type;
+		put(header, 257, "ustar");
+		put(header, 263, "00");
+
+		// The checksum is worked out with its own field as spaces
+		put(header, 148, "        ");
+		long sum = 0;
+		for (byte b : header) sum += b & 0xff;
+		put(header, 148, String.format("%06o", sum));
+		header[154] = 0;
+
+		tar.write(header, 0, header.length);
+		tar.write(data, 0, data.length);
+		int padding = (TarReader.BLOCK_SIZE - data.length % TarReader.BLOCK_SIZE) % TarReader.BLOCK_SIZE;
+		tar.write(new byte[padding], 0, padding);
+	}
+
+	private static void put(byte[] header, int offset, String value)
+	{
+		byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(bytes, 0, header, offset, bytes.length);
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Writes a Gradebook with the good student and the damaged entry given.
+	* --------------------------------------------------------------------
+	*/
+	File gradebook(String name, ZipWriter.Prepared damaged) throws IOException
+	{
+		File zip = new File(workFolder, name + ".zip");
+		try (ZipWriter writer = new ZipWriter(zip)) {
+			writer.add(ZipWriter.prepare(GOOD, text(200000)));
+			writer.add(damaged);
+		}
+		return zip;
+	}
+
+	/**
+	* --------------------------------------------------------------------
+	* Unzips a Gradebook in one mode. It passes if the unzip finishes in
+	* time, without an exception, says it is not complete (or notes the
+	* damaged student's archive as unopened), and the good student's file
+	* is still written.
+	* --------------------------------------------------------------------
+	*/
+	void check(String name, File zip, String mode) throws Exception
+	{
+		String destDir = new File(workFolder, zip.getName().replace(".zip", "") + "-" + mode).getPath();
+		Options options = new Options();
+		if (mode.equals("threads")) options.threads = 2;
+		if (mode.equals("pipeline")) options.pipeline = true;
+
+		String problem = null;
+		ExecutorService runner = Executors.newSingleThreadExecutor();
+		PrintStream console = System.out, errors = System.err;
+		PrintStream quiet = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {}
+			@Override
+			public void write(byte[] b, int off, int len) {}
+		});
+		System.setOut(quiet);
+		System.setErr(quiet);
+		try {
+			Future<Roster> unzip = runner.submit(() -> Script.unzip(zip.getPath(), destDir, options));
+			Roster roster = unzip.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			Roster.Student damaged = roster.get("c3000002");
+			boolean noted = damaged != null && !damaged.unopened.isEmpty();
+			if (roster.complete() && !noted) problem = "it was reported as complete";
+			else if (!new File(destDir, "c3000001/c3000001_attempt_2020-01-01-00-00-00_report.txt").isFile()) problem = "the good student's file is missing";
+		}
+		catch (TimeoutException e) {
+			problem = "it did not finish in " + TIMEOUT_SECONDS + " s";
+		}
+		catch (Exception e) {
+			problem = "it stopped with " + (e.getCause() != null ? e.getCause() : e);
+		}
+		finally {
+			System.setOut(console);
+			System.setErr(errors);
+			runner.shutdownNow();
+		}
+
+		if (problem != null) failed++;
+		System.out.println(String.format("%-8s %-24s %-10s %s", problem == null ? "ok" : "FAILED", name, mode, problem == null ? "" : problem));
+	}
+
+	// Lines of text, which deflate well
+	private static byte[] text(int size)
+	{
+		StringBuilder text = new StringBuilder(size + 80);
+		for (int line = 0; text.length() < size; line++) text.append("Line ").append(line).append(" of the student's report\n");
+		return text.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}